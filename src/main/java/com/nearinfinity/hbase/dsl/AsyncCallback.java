@@ -0,0 +1,49 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Notified when an asynchronous fetch, scan or flush completes. Callbacks run
+ * on the thread of the async executor that ran the operation and should
+ * return quickly.
+ * 
+ * @author Aaron McCurry
+ * 
+ * @param <T>
+ *            the type of the result.
+ */
+public interface AsyncCallback<T> {
+
+	/**
+	 * Called with the result of the operation.
+	 * 
+	 * @param result
+	 *            the result, null for operations without a result.
+	 */
+	void completed(T result);
+
+	/**
+	 * Called when the operation failed.
+	 * 
+	 * @param cause
+	 *            the error.
+	 */
+	void failed(Exception cause);
+
+}
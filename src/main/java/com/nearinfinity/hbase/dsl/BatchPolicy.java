@@ -0,0 +1,129 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The batch policy decides when the pending changes of a table are flushed.
+ * A table is flushed once any of the limits is reached: the number of pending
+ * mutations, the estimated heap size of the pending mutations or the linger
+ * time since the first pending mutation. Without write behind the linger time
+ * is checked when the next mutation for the table is saved, with write behind
+ * the background thread flushes the table once the linger time has passed.
+ * <p>
+ * With coalescing enabled the mutations of each flushed batch are merged so
+ * that every row is sent as at most one put and one delete, with the last
+ * value written to a column winning.
+ *
+ * @author Aaron McCurry
+ */
+public class BatchPolicy {
+
+	public static final int DEFAULT_MAX_MUTATIONS = 1024;
+	public static final long DEFAULT_MAX_HEAP_SIZE = 2 * 1024 * 1024;
+
+	private volatile int maxMutations = DEFAULT_MAX_MUTATIONS;
+	private volatile long maxHeapSize = DEFAULT_MAX_HEAP_SIZE;
+	private volatile long lingerMillis = -1;
+	private volatile boolean coalesce;
+
+	/**
+	 * Sets the max number of puts and deletes pending before a flush.
+	 *
+	 * @param maxMutations
+	 *            the max number of mutations.
+	 * @return this.
+	 */
+	public BatchPolicy maxMutations(int maxMutations) {
+		if (maxMutations < 1) {
+			throw new IllegalArgumentException("Max mutations [" + maxMutations + "] must be at least 1.");
+		}
+		this.maxMutations = maxMutations;
+		return this;
+	}
+
+	/**
+	 * Sets the max estimated heap size in bytes of the pending puts and deletes
+	 * before a flush.
+	 *
+	 * @param maxHeapSize
+	 *            the max heap size in bytes.
+	 * @return this.
+	 */
+	public BatchPolicy maxHeapSize(long maxHeapSize) {
+		if (maxHeapSize < 1) {
+			throw new IllegalArgumentException("Max heap size [" + maxHeapSize + "] must be at least 1.");
+		}
+		this.maxHeapSize = maxHeapSize;
+		return this;
+	}
+
+	/**
+	 * Sets the max time the first pending mutation waits before a flush.
+	 *
+	 * @param linger
+	 *            the linger time.
+	 * @param unit
+	 *            the unit of the linger time.
+	 * @return this.
+	 */
+	public BatchPolicy linger(long linger, TimeUnit unit) {
+		this.lingerMillis = unit.toMillis(linger);
+		return this;
+	}
+
+	/**
+	 * Sets whether mutations for the same row are merged before they are
+	 * flushed.
+	 *
+	 * @param coalesce
+	 *            true to merge the mutations.
+	 * @return this.
+	 */
+	public BatchPolicy coalesce(boolean coalesce) {
+		this.coalesce = coalesce;
+		return this;
+	}
+
+	public int getMaxMutations() {
+		return maxMutations;
+	}
+
+	public long getMaxHeapSize() {
+		return maxHeapSize;
+	}
+
+	/**
+	 * @return the linger time in milliseconds, or -1 if there is no linger
+	 *         time.
+	 */
+	public long getLingerMillis() {
+		return lingerMillis;
+	}
+
+	public boolean isCoalesce() {
+		return coalesce;
+	}
+
+	@Override
+	public String toString() {
+		return "maxMutations [" + maxMutations + "] maxHeapSize [" + maxHeapSize + "] lingerMillis [" + lingerMillis
+				+ "] coalesce [" + coalesce + "]";
+	}
+}
@@ -0,0 +1,467 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Writes batches of puts and deletes through pooled tables. When a batch
+ * fails only the mutations the region servers did not accept are retried:
+ * failed puts are left in the write buffer of the table and failed deletes
+ * are left in the list that was sent. Mutations that still fail once the
+ * {@link RetryPolicy} is exhausted are given to the {@link DeadLetterHandler},
+ * or reported as an exception if there is none.
+ * <p>
+ * A batch is split by the region server that hosts each row, and the groups
+ * are written concurrently on a bounded pool of dispatch threads, so a flush
+ * takes as long as the slowest server rather than the sum of all of them.
+ * The order of the mutations for each server is kept, and a write returns
+ * only once every group is done. Multi row fetches are split by region the
+ * same way and share the dispatch threads.
+ * 
+ * @author Aaron McCurry
+ */
+class BatchWriter {
+
+	private static final Log LOG = LogFactory.getLog(BatchWriter.class);
+	private HTablePool pool;
+	private Random random = new Random();
+	private volatile RetryPolicy retryPolicy = new RetryPolicy();
+	private volatile DeadLetterHandler deadLetterHandler;
+	private volatile ExecutorService executor;
+
+	BatchWriter(HTablePool pool, int dispatchThreads) {
+		this.pool = pool;
+		setDispatchThreads(dispatchThreads);
+	}
+
+	/**
+	 * Sets the number of threads that write the groups of a batch, with a
+	 * single thread the groups are written one after another on the calling
+	 * thread.
+	 */
+	synchronized void setDispatchThreads(int dispatchThreads) {
+		if (dispatchThreads < 1) {
+			throw new IllegalArgumentException("Dispatch threads [" + dispatchThreads + "] must be at least 1.");
+		}
+		ExecutorService old = executor;
+		executor = dispatchThreads == 1 ? null : newExecutor(dispatchThreads);
+		if (old != null) {
+			old.shutdown();
+		}
+	}
+
+	/**
+	 * Stops the dispatch threads, groups are written on the calling thread
+	 * from then on.
+	 */
+	synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	void setDeadLetterHandler(DeadLetterHandler deadLetterHandler) {
+		this.deadLetterHandler = deadLetterHandler;
+	}
+
+	/**
+	 * Writes the puts.
+	 * 
+	 * @return the error of the first puts handed to the
+	 *         {@link DeadLetterHandler}, or null if all puts were written.
+	 */
+	IOException writePuts(final byte[] tableName, List<Put> puts) {
+		final AtomicReference<IOException> deadLettered = new AtomicReference<IOException>();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final List<Put> group : groupByServer(tableName, puts)) {
+			futures.add(dispatch(new Runnable() {
+				@Override
+				public void run() {
+					deadLettered.compareAndSet(null, writePutGroup(tableName, group));
+				}
+			}));
+		}
+		await(futures);
+		return deadLettered.get();
+	}
+
+	/**
+	 * Writes the deletes.
+	 * 
+	 * @return the error of the first deletes handed to the
+	 *         {@link DeadLetterHandler}, or null if all deletes were written.
+	 */
+	IOException writeDeletes(final byte[] tableName, List<Delete> deletes) {
+		final AtomicReference<IOException> deadLettered = new AtomicReference<IOException>();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final List<Delete> group : groupByServer(tableName, deletes)) {
+			futures.add(dispatch(new Runnable() {
+				@Override
+				public void run() {
+					deadLettered.compareAndSet(null, writeDeleteGroup(tableName, group));
+				}
+			}));
+		}
+		await(futures);
+		return deadLettered.get();
+	}
+
+	/**
+	 * Applies the increments. Failed increments are not retried, an increment
+	 * that timed out may still have been applied.
+	 */
+	void writeIncrements(final byte[] tableName, List<MutationBuffer.Counter> counters) {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final List<MutationBuffer.Counter> group : groupByServer(tableName, counters)) {
+			futures.add(dispatch(new Runnable() {
+				@Override
+				public void run() {
+					writeIncrementGroup(tableName, group);
+				}
+			}));
+		}
+		await(futures);
+	}
+
+	private void writeIncrementGroup(byte[] tableName, List<MutationBuffer.Counter> counters) {
+		HTable table = pool.getTable(tableName);
+		int applied = 0;
+		try {
+			for (MutationBuffer.Counter counter : counters) {
+				table.incrementColumnValue(counter.row, counter.family, counter.qualifier, counter.amount);
+				applied++;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("[" + (counters.size() - applied) + "] increments to table ["
+					+ Bytes.toString(tableName) + "] failed.", e);
+		} finally {
+			pool.putTable(table);
+		}
+	}
+
+	private IOException writePutGroup(byte[] tableName, List<Put> puts) {
+		RetryPolicy policy = retryPolicy;
+		for (int retry = 0;; retry++) {
+			HTable table = pool.getTable(tableName);
+			try {
+				table.put(puts);
+				return null;
+			} catch (IOException e) {
+				List<Put> writeBuffer = table.getWriteBuffer();
+				puts = new ArrayList<Put>(writeBuffer);
+				writeBuffer.clear();
+				if (puts.isEmpty()) {
+					return null;
+				}
+				if (!backoff(tableName, puts.size(), retry, policy, e)) {
+					failedPuts(tableName, puts, e);
+					return e;
+				}
+			} finally {
+				pool.putTable(table);
+			}
+		}
+	}
+
+	private IOException writeDeleteGroup(byte[] tableName, List<Delete> deletes) {
+		RetryPolicy policy = retryPolicy;
+		for (int retry = 0;; retry++) {
+			HTable table = pool.getTable(tableName);
+			ArrayList<Delete> pending = new ArrayList<Delete>(deletes);
+			try {
+				table.delete(pending);
+				return null;
+			} catch (IOException e) {
+				deletes = pending;
+				if (deletes.isEmpty()) {
+					return null;
+				}
+				if (!backoff(tableName, deletes.size(), retry, policy, e)) {
+					failedDeletes(tableName, deletes, e);
+					return e;
+				}
+			} finally {
+				pool.putTable(table);
+			}
+		}
+	}
+
+	/**
+	 * Writes each put only if its checked column holds the expected value.
+	 * The puts are independent of each other and are written concurrently on
+	 * the dispatch threads.
+	 * 
+	 * @return whether each put was written, in the order of the given puts.
+	 */
+	List<Boolean> checkAndPut(List<? extends SaveRow.ConditionalSave<?, ?>> saves) {
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (final SaveRow.ConditionalSave<?, ?> save : saves) {
+			Callable<Boolean> check = new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws IOException {
+					HTable table = pool.getTable(save.tableName);
+					try {
+						return table.checkAndPut(save.put.getRow(), save.checkFamily, save.checkQualifier,
+								save.checkValue, save.put);
+					} finally {
+						pool.putTable(table);
+					}
+				}
+			};
+			ExecutorService service = executor;
+			if (service != null && saves.size() > 1) {
+				try {
+					futures.add(service.submit(check));
+					continue;
+				} catch (RejectedExecutionException e) {
+					// the dispatch threads were replaced, fall through
+				}
+			}
+			FutureTask<Boolean> task = new FutureTask<Boolean>(check);
+			task.run();
+			futures.add(task);
+		}
+		await(futures);
+		List<Boolean> results = new ArrayList<Boolean>();
+		for (Future<Boolean> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Fetches the rows of the given gets, the gets of each region are run one
+	 * after another on a dispatch thread of their own.
+	 * 
+	 * @return the results, in the order of the given gets.
+	 */
+	List<Result> get(final byte[] tableName, List<Get> gets) {
+		final Result[] results = new Result[gets.size()];
+		final Map<Get, Integer> positions = new IdentityHashMap<Get, Integer>();
+		for (int i = 0; i < gets.size(); i++) {
+			positions.put(gets.get(i), i);
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final List<Get> group : groupByLocation(tableName, gets, true)) {
+			futures.add(dispatch(new Runnable() {
+				@Override
+				public void run() {
+					HTable table = pool.getTable(tableName);
+					try {
+						for (Get get : group) {
+							results[positions.get(get)] = table.get(get);
+						}
+					} catch (IOException e) {
+						throw new RuntimeException("Fetching [" + group.size() + "] rows from table ["
+								+ Bytes.toString(tableName) + "] failed.", e);
+					} finally {
+						pool.putTable(table);
+					}
+				}
+			}));
+		}
+		await(futures);
+		return Arrays.asList(results);
+	}
+
+	private <T> List<List<T>> groupByServer(byte[] tableName, List<T> mutations) {
+		return groupByLocation(tableName, mutations, false);
+	}
+
+	/**
+	 * Splits the mutations by the region, or the region server, that hosts
+	 * their rows. When there are no dispatch threads, or the regions can not
+	 * be located, the mutations are kept as a single group.
+	 */
+	private <T> List<List<T>> groupByLocation(byte[] tableName, List<T> mutations, boolean byRegion) {
+		if (executor == null || mutations.size() < 2) {
+			return Collections.singletonList(mutations);
+		}
+		Map<String, List<T>> groups = new LinkedHashMap<String, List<T>>();
+		HTable table = pool.getTable(tableName);
+		try {
+			for (T mutation : mutations) {
+				HRegionLocation location = table.getRegionLocation(getRow(mutation));
+				String key = byRegion ? location.getRegionInfo().getRegionNameAsString() : location
+						.getServerAddress().toString();
+				List<T> group = groups.get(key);
+				if (group == null) {
+					group = new ArrayList<T>();
+					groups.put(key, group);
+				}
+				group.add(mutation);
+			}
+		} catch (IOException e) {
+			LOG.warn("Could not locate the regions of table [" + Bytes.toString(tableName) + "]", e);
+			return Collections.singletonList(mutations);
+		} finally {
+			pool.putTable(table);
+		}
+		return new ArrayList<List<T>>(groups.values());
+	}
+
+	/**
+	 * Runs the given write on a dispatch thread, or on the calling thread if
+	 * there are none.
+	 */
+	private Future<?> dispatch(Runnable write) {
+		ExecutorService service = executor;
+		if (service != null) {
+			try {
+				return service.submit(write);
+			} catch (RejectedExecutionException e) {
+				// the dispatch threads were replaced, fall through
+			}
+		}
+		write.run();
+		return null;
+	}
+
+	/**
+	 * Waits for all the dispatched writes, throwing the first failure once
+	 * they are all done.
+	 */
+	private void await(List<? extends Future<?>> futures) {
+		RuntimeException failure = null;
+		for (Future<?> future : futures) {
+			if (future == null) {
+				continue;
+			}
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				RuntimeException cause = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+						: new RuntimeException(e.getCause());
+				if (failure == null) {
+					failure = cause;
+				} else {
+					LOG.error("Write failed.", cause);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure == null) {
+					failure = new RuntimeException(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Waits before the given retry.
+	 * 
+	 * @return false if no more retries should be made.
+	 */
+	private boolean backoff(byte[] tableName, int failed, int retry, RetryPolicy policy, IOException e) {
+		if (retry >= policy.getMaxRetries()) {
+			return false;
+		}
+		long backoff;
+		synchronized (random) {
+			backoff = policy.backoffMillis(retry, random);
+		}
+		LOG.warn("[" + failed + "] mutations to table [" + Bytes.toString(tableName) + "] failed, retrying in ["
+				+ backoff + " ms]", e);
+		try {
+			Thread.sleep(backoff);
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static byte[] getRow(Object mutation) {
+		if (mutation instanceof Put) {
+			return ((Put) mutation).getRow();
+		}
+		if (mutation instanceof MutationBuffer.Counter) {
+			return ((MutationBuffer.Counter) mutation).row;
+		}
+		if (mutation instanceof Get) {
+			return ((Get) mutation).getRow();
+		}
+		return ((Delete) mutation).getRow();
+	}
+
+	private static ExecutorService newExecutor(int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("hbase-dsl-dispatch"));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	private void failedPuts(byte[] tableName, List<Put> puts, IOException e) {
+		DeadLetterHandler handler = deadLetterHandler;
+		if (handler == null) {
+			throw new RuntimeException("[" + puts.size() + "] puts to table [" + Bytes.toString(tableName)
+					+ "] failed.", e);
+		}
+		handler.failedPuts(tableName, puts, e);
+	}
+
+	private void failedDeletes(byte[] tableName, List<Delete> deletes, IOException e) {
+		DeadLetterHandler handler = deadLetterHandler;
+		if (handler == null) {
+			throw new RuntimeException("[" + deletes.size() + "] deletes to table [" + Bytes.toString(tableName)
+					+ "] failed.", e);
+		}
+		handler.failedDeletes(tableName, deletes, e);
+	}
+}
@@ -0,0 +1,374 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.hfile.Compression;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Writes rows into HFiles instead of sending puts to the region servers. The
+ * rows are saved with the same fluent calls as {@link SaveRow}, the cells are
+ * sorted with a bounded amount of memory by spilling sorted runs to local
+ * temporary files, and {@link #close()} merges the runs into one HFile per
+ * region and family:
+ * 
+ * <pre>
+ * outputDir/family/00000
+ * outputDir/family/00001
+ * ...
+ * </pre>
+ * 
+ * The regions are the ones of the table when the bulk load was started. The
+ * output directory can be handed to the bin/loadtable.rb script of HBase.
+ * Cells without a timestamp get the time the bulk load was started, when the
+ * same cell is saved more than once the last value wins.
+ * 
+ * @author Aaron McCurry
+ * 
+ * @param <QUERY_OP_TYPE>
+ *            QueryOperator Type, allows users to extend QueryOperatorDelegate
+ *            and add their own methods.
+ * @param <ROW_ID_TYPE>
+ *            Type of the Row id (String, Integer, Long, etc.).
+ */
+public class BulkLoad<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
+
+	public static final long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+
+	private static final Log LOG = LogFactory.getLog(BulkLoad.class);
+	private HBase<QUERY_OP_TYPE, ROW_ID_TYPE> hBase;
+	private byte[] tableName;
+	private Configuration conf;
+	private Path outputDir;
+	private byte[][] startKeys;
+	private long timestamp = System.currentTimeMillis();
+	private long maxMemory = DEFAULT_MAX_MEMORY;
+	private File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+	private List<KeyValue> cells = new ArrayList<KeyValue>();
+	private long cellsSize;
+	private List<File> runs = new ArrayList<File>();
+	private boolean closed;
+
+	BulkLoad(HBase<QUERY_OP_TYPE, ROW_ID_TYPE> hBase, byte[] tableName, Configuration conf, Path outputDir,
+			byte[][] startKeys) {
+		this.hBase = hBase;
+		this.tableName = tableName;
+		this.conf = conf;
+		this.outputDir = outputDir;
+		this.startKeys = startKeys;
+	}
+
+	/**
+	 * Sets the max estimated heap size of the cells held in memory, once it
+	 * is reached the cells are sorted and spilled to a temporary file.
+	 * 
+	 * @param maxMemory
+	 *            the max memory in bytes.
+	 * @return this.
+	 */
+	public BulkLoad<QUERY_OP_TYPE, ROW_ID_TYPE> maxMemory(long maxMemory) {
+		this.maxMemory = maxMemory;
+		return this;
+	}
+
+	/**
+	 * Sets the local directory for the temporary sorted runs.
+	 * 
+	 * @param tmpDir
+	 *            the directory.
+	 * @return this.
+	 */
+	public BulkLoad<QUERY_OP_TYPE, ROW_ID_TYPE> tmpDir(File tmpDir) {
+		this.tmpDir = tmpDir;
+		return this;
+	}
+
+	/**
+	 * @return a {@link SaveRow} that adds its rows to this bulk load.
+	 */
+	public SaveRow<QUERY_OP_TYPE, ROW_ID_TYPE> save() {
+		return new SaveRow<QUERY_OP_TYPE, ROW_ID_TYPE>(hBase, tableName, this);
+	}
+
+	/**
+	 * Sorts all the saved cells and writes the HFiles.
+	 * 
+	 * @return the paths of the written HFiles.
+	 */
+	public synchronized List<Path> close() {
+		checkOpen();
+		closed = true;
+		try {
+			Collections.sort(cells, KeyValue.COMPARATOR);
+			List<Run> sources = new ArrayList<Run>();
+			for (File run : runs) {
+				sources.add(new FileRun(run, sources.size()));
+			}
+			sources.add(new MemoryRun(cells, sources.size()));
+			return write(sources);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			for (File run : runs) {
+				if (!run.delete()) {
+					LOG.warn("Could not delete sorted run [" + run + "]");
+				}
+			}
+			cells = null;
+		}
+	}
+
+	synchronized void add(byte[] row, byte[] family, byte[] qualifier, Long timestamp, byte[] value) {
+		checkOpen();
+		KeyValue keyValue = new KeyValue(row, family, qualifier, timestamp == null ? this.timestamp : timestamp,
+				value);
+		cells.add(keyValue);
+		cellsSize += keyValue.heapSize();
+		if (cellsSize >= maxMemory) {
+			spill();
+		}
+	}
+
+	private void spill() {
+		Collections.sort(cells, KeyValue.COMPARATOR);
+		try {
+			File file = File.createTempFile("bulkload-", ".run", tmpDir);
+			runs.add(file);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				for (KeyValue keyValue : cells) {
+					keyValue.write(out);
+				}
+			} finally {
+				out.close();
+			}
+			LOG.debug("Spilled [" + cells.size() + "] cells to [" + file + "]");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		cells = new ArrayList<KeyValue>();
+		cellsSize = 0;
+	}
+
+	/**
+	 * Merges the sorted runs and writes each cell to the HFile of its region
+	 * and family. Of cells with the same key the one saved last is kept.
+	 */
+	private List<Path> write(List<Run> sources) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(sources.size() + 1, new Comparator<Run>() {
+			@Override
+			public int compare(Run o1, Run o2) {
+				int compare = KeyValue.COMPARATOR.compare(o1.current, o2.current);
+				return compare != 0 ? compare : o1.order - o2.order;
+			}
+		});
+		for (Run run : sources) {
+			if (run.next()) {
+				queue.add(run);
+			}
+		}
+		FileSystem fs = outputDir.getFileSystem(conf);
+		List<Path> paths = new ArrayList<Path>();
+		RegionWriter writer = new RegionWriter(fs, paths);
+		KeyValue previous = null;
+		try {
+			while (!queue.isEmpty()) {
+				Run run = queue.poll();
+				KeyValue keyValue = run.current;
+				if (run.next()) {
+					queue.add(run);
+				}
+				if (previous != null && KeyValue.COMPARATOR.compare(previous, keyValue) != 0) {
+					writer.append(previous);
+				}
+				previous = keyValue;
+			}
+			if (previous != null) {
+				writer.append(previous);
+			}
+		} finally {
+			writer.close();
+			for (Run run : sources) {
+				run.close();
+			}
+		}
+		return paths;
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Bulk load of table [" + Bytes.toString(tableName) + "] is closed.");
+		}
+	}
+
+	/**
+	 * Keeps one open HFile per family for the region of the current row.
+	 */
+	private class RegionWriter {
+
+		private FileSystem fs;
+		private List<Path> paths;
+		private int region = -1;
+		private List<HFile.Writer> writers = new ArrayList<HFile.Writer>();
+		private List<byte[]> families = new ArrayList<byte[]>();
+
+		RegionWriter(FileSystem fs, List<Path> paths) {
+			this.fs = fs;
+			this.paths = paths;
+		}
+
+		void append(KeyValue keyValue) throws IOException {
+			int cellRegion = region(keyValue.getRow());
+			if (cellRegion != region) {
+				close();
+				region = cellRegion;
+			}
+			getWriter(keyValue.getFamily()).append(keyValue);
+		}
+
+		void close() throws IOException {
+			for (HFile.Writer writer : writers) {
+				StoreFile.appendMetadata(writer, timestamp, true);
+				writer.close();
+			}
+			writers.clear();
+			families.clear();
+		}
+
+		private HFile.Writer getWriter(byte[] family) throws IOException {
+			for (int i = 0; i < families.size(); i++) {
+				if (Bytes.equals(family, families.get(i))) {
+					return writers.get(i);
+				}
+			}
+			Path familyDir = new Path(outputDir, Bytes.toString(family));
+			fs.mkdirs(familyDir);
+			Path path = new Path(familyDir, String.format("%05d", region));
+			HFile.Writer writer = new HFile.Writer(fs, path, HFile.DEFAULT_BLOCKSIZE, Compression.Algorithm.NONE,
+					KeyValue.KEY_COMPARATOR);
+			families.add(family);
+			writers.add(writer);
+			paths.add(path);
+			return writer;
+		}
+
+		private int region(byte[] row) {
+			int low = 0;
+			int high = startKeys.length - 1;
+			while (low < high) {
+				int mid = (low + high + 1) >>> 1;
+				if (Bytes.compareTo(startKeys[mid], row) <= 0) {
+					low = mid;
+				} else {
+					high = mid - 1;
+				}
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * A sorted sequence of cells, ordered by when the run was written so cells
+	 * saved later win.
+	 */
+	private static abstract class Run {
+		final int order;
+		KeyValue current;
+
+		Run(int order) {
+			this.order = order;
+		}
+
+		abstract boolean next() throws IOException;
+
+		void close() {
+		}
+	}
+
+	private static class MemoryRun extends Run {
+		private List<KeyValue> cells;
+		private int index;
+
+		MemoryRun(List<KeyValue> cells, int order) {
+			super(order);
+			this.cells = cells;
+		}
+
+		@Override
+		boolean next() {
+			if (index >= cells.size()) {
+				return false;
+			}
+			current = cells.get(index++);
+			return true;
+		}
+	}
+
+	private static class FileRun extends Run {
+		private DataInputStream in;
+
+		FileRun(File file, int order) throws IOException {
+			super(order);
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+
+		@Override
+		boolean next() throws IOException {
+			KeyValue keyValue = new KeyValue();
+			try {
+				keyValue.readFields(in);
+			} catch (EOFException e) {
+				return false;
+			}
+			current = keyValue;
+			return true;
+		}
+
+		@Override
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				LOG.warn("Could not close sorted run.", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * A snapshot of the statistics of a row cache.
+ * 
+ * @author Aaron McCurry
+ */
+public class CacheStats {
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+	private long invalidations;
+	private int rows;
+	private long bytes;
+
+	CacheStats(long hits, long misses, long evictions, long expirations, long invalidations, int rows, long bytes) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.expirations = expirations;
+		this.invalidations = invalidations;
+		this.rows = rows;
+		this.bytes = bytes;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the hits divided by all lookups, or 0 if there were no lookups.
+	 */
+	public double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * @return the number of rows removed to stay within the max size.
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the number of entries dropped because their time to live had
+	 *         passed.
+	 */
+	public long getExpirations() {
+		return expirations;
+	}
+
+	/**
+	 * @return the number of rows removed because they were written to.
+	 */
+	public long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * @return the number of rows currently cached.
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the estimated size in bytes of the cached rows.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "hits [" + hits + "] misses [" + misses + "] evictions [" + evictions + "] expirations ["
+				+ expirations + "] invalidations [" + invalidations + "] rows [" + rows + "] bytes [" + bytes + "]";
+	}
+}
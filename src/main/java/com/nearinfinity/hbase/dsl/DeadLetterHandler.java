@@ -0,0 +1,58 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+
+/**
+ * Receives the mutations that still failed after all retries of the
+ * {@link RetryPolicy}, so they can be logged, stored or replayed later. The
+ * handler may be called from several flush threads at once.
+ * 
+ * @author Aaron McCurry
+ */
+public interface DeadLetterHandler {
+
+	/**
+	 * Called with the puts that could not be written.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param puts
+	 *            the failed puts.
+	 * @param cause
+	 *            the error of the last attempt.
+	 */
+	void failedPuts(byte[] tableName, List<Put> puts, Exception cause);
+
+	/**
+	 * Called with the deletes that could not be written.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param deletes
+	 *            the failed deletes.
+	 * @param cause
+	 *            the error of the last attempt.
+	 */
+	void failedDeletes(byte[] tableName, List<Delete> deletes, Exception cause);
+
+}
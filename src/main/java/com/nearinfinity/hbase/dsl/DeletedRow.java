@@ -52,6 +52,12 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
 
 	/**
 	 * Creates a {@link DeletedRowFamily} object and passes the id provided.
+	 * The row is deleted as a whole unless columns are named, the delete is
+	 * held back from background flushes until the calling thread saves,
+	 * deletes, flushes or reads through the {@link HBase} object again, but
+	 * for no longer than one write behind interval or the linger time of the
+	 * table. Name the columns right away, a chain that is finished later may
+	 * be sent as a whole row delete followed by a column delete.
 	 * 
 	 * @param id
 	 *            the id of the row, family(s), or column(s) that you intend to
@@ -121,6 +127,19 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
 			return deleteRow.row(id);
 		}
 
+		/**
+		 * Registers a callback that is notified once the deletes queued so far
+		 * have been flushed, or once their flush failed.
+		 * 
+		 * @param callback
+		 *            the callback.
+		 * @return this.
+		 */
+		public DeletedRowFamily<T, I> whenWritten(WriteCallback callback) {
+			hBase.saveCallback(tableName, callback);
+			return this;
+		}
+
 		public DeletedRowFamily<T, I> flush() {
 			hBase.flush(tableName);
 			return this;
@@ -160,7 +179,7 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
 			if (currentFamily == null) {
 				throw new RuntimeException("not implemented");
 			} else {
-				delete.deleteColumn(currentFamily, name);
+				delete = hBase.saveDeleteColumn(tableName, delete, currentFamily, name);
 			}
 			return this;
 		}
@@ -169,6 +188,19 @@ public class DeletedRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE
 			return deleteRow.row(id);
 		}
 
+		/**
+		 * Registers a callback that is notified once the deletes queued so far
+		 * have been flushed, or once their flush failed.
+		 * 
+		 * @param callback
+		 *            the callback.
+		 * @return this.
+		 */
+		public DeletedRowFamilyColumn<T, I> whenWritten(WriteCallback callback) {
+			hBase.saveCallback(tableName, callback);
+			return this;
+		}
+
 		public DeletedRowFamilyColumn<T, I> flush() {
 			hBase.flush(tableName);
 			return this;
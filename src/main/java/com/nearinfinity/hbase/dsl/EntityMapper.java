@@ -0,0 +1,205 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.nearinfinity.hbase.dsl.annotation.Column;
+import com.nearinfinity.hbase.dsl.annotation.RowId;
+import com.nearinfinity.hbase.dsl.types.TypeConverter;
+
+/**
+ * Maps the annotated fields of an entity class to a table row. Everything
+ * that does not depend on the entity is worked out once per class: the table,
+ * family and column names are encoded to bytes, the fields are made
+ * accessible and the {@link TypeConverter} of each field is looked up. Saving
+ * or fetching a row only reads or writes the bound fields and converts their
+ * values.
+ * 
+ * @author Aaron McCurry
+ * 
+ * @param <T>
+ *            the entity type.
+ */
+class EntityMapper<T> {
+
+	private Class<T> type;
+	private Constructor<T> constructor;
+	private byte[] tableName;
+	private Field rowId;
+	private TypeConverter<Object> rowIdConverter;
+	private List<ColumnField> columns = new ArrayList<ColumnField>();
+
+	@SuppressWarnings("unchecked")
+	EntityMapper(Class<T> type, TypeDriver typeDriver) {
+		this.type = type;
+		com.nearinfinity.hbase.dsl.annotation.Table table = type
+				.getAnnotation(com.nearinfinity.hbase.dsl.annotation.Table.class);
+		if (table == null) {
+			throw new IllegalArgumentException("Class [" + type + "] has no @Table annotation.");
+		}
+		tableName = Bytes.toBytes(table.value());
+		com.nearinfinity.hbase.dsl.annotation.Family classFamily = type
+				.getAnnotation(com.nearinfinity.hbase.dsl.annotation.Family.class);
+		for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				if (field.isAnnotationPresent(RowId.class)) {
+					if (rowId != null) {
+						throw new IllegalArgumentException("Class [" + type + "] has more than one @RowId field.");
+					}
+					field.setAccessible(true);
+					rowId = field;
+					rowIdConverter = (TypeConverter<Object>) typeDriver.getTypeConverter(field.getType());
+				}
+				Column column = field.getAnnotation(Column.class);
+				if (column != null) {
+					field.setAccessible(true);
+					columns.add(new ColumnField(field, family(field, column, classFamily), qualifier(field, column),
+							(TypeConverter<Object>) typeDriver.getTypeConverter(field.getType())));
+				}
+			}
+		}
+		if (rowId == null) {
+			throw new IllegalArgumentException("Class [" + type + "] has no @RowId field.");
+		}
+		try {
+			constructor = type.getDeclaredConstructor();
+			constructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("Class [" + type + "] has no default constructor.", e);
+		}
+	}
+
+	byte[] getTableName() {
+		return tableName;
+	}
+
+	byte[] toRow(Object id) {
+		return rowIdConverter.toBytes(id);
+	}
+
+	/**
+	 * Saves the non null fields of the entity through the write buffer.
+	 */
+	void save(HBase<?, ?> hBase, T entity) {
+		Object id = get(rowId, entity);
+		if (id == null) {
+			throw new IllegalArgumentException("Row id of entity [" + entity + "] is null.");
+		}
+		Put put = new Put(toRow(id));
+		for (ColumnField column : columns) {
+			Object value = get(column.field, entity);
+			if (value != null) {
+				put = hBase.savePut(tableName, put, column.family, column.qualifier, null, column.converter
+						.toBytes(value));
+			}
+		}
+	}
+
+	/**
+	 * @return a get of the mapped columns of the given row.
+	 */
+	Get newGet(Object id) {
+		Get get = new Get(toRow(id));
+		for (ColumnField column : columns) {
+			get.addColumn(column.family, column.qualifier);
+		}
+		return get;
+	}
+
+	void addColumns(Scanner<?, ?> scanner) {
+		for (ColumnField column : columns) {
+			scanner.addColumn(column.family, column.qualifier);
+		}
+	}
+
+	/**
+	 * @return a new entity filled from the result, or null if the result is
+	 *         empty.
+	 */
+	T toEntity(Result result) {
+		if (result.getRow() == null) {
+			return null;
+		}
+		try {
+			T entity = constructor.newInstance();
+			rowId.set(entity, rowIdConverter.fromBytes(result.getRow()));
+			for (ColumnField column : columns) {
+				byte[] value = result.getValue(column.family, column.qualifier);
+				if (value != null) {
+					column.field.set(entity, column.converter.fromBytes(value));
+				}
+			}
+			return entity;
+		} catch (Exception e) {
+			throw new RuntimeException("Could not create entity of class [" + type + "]", e);
+		}
+	}
+
+	private static Object get(Field field, Object entity) {
+		try {
+			return field.get(entity);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] family(Field field, Column column, com.nearinfinity.hbase.dsl.annotation.Family classFamily) {
+		if (!column.family().isEmpty()) {
+			return Bytes.toBytes(column.family());
+		}
+		com.nearinfinity.hbase.dsl.annotation.Family family = field
+				.getAnnotation(com.nearinfinity.hbase.dsl.annotation.Family.class);
+		if (family == null) {
+			family = classFamily;
+		}
+		if (family == null) {
+			throw new IllegalArgumentException("Field [" + field + "] has no family.");
+		}
+		return Bytes.toBytes(family.value());
+	}
+
+	private static byte[] qualifier(Field field, Column column) {
+		if (column.value().isEmpty()) {
+			return Bytes.toBytes(field.getName());
+		}
+		return Bytes.toBytes(column.value());
+	}
+
+	private static class ColumnField {
+		final Field field;
+		final byte[] family;
+		final byte[] qualifier;
+		final TypeConverter<Object> converter;
+
+		ColumnField(Field field, byte[] family, byte[] qualifier, TypeConverter<Object> converter) {
+			this.field = field;
+			this.family = family;
+			this.qualifier = qualifier;
+			this.converter = converter;
+		}
+	}
+}
@@ -17,16 +17,15 @@ package com.nearinfinity.hbase.dsl;
  * limitations under the License.
  */
 
-import java.util.Map;
-import java.util.NavigableSet;
+import java.util.concurrent.Future;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.client.Get;
-import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
 
 /**
+ * Selects the families and columns of a fetch. Every call to
+ * {@link #row(Object)} fetches again with the current selection, use
+ * {@link #prepare()} to reuse a selection across threads.
  * 
  * @author Aaron McCurry
  * 
@@ -34,12 +33,10 @@ import org.apache.hadoop.hbase.util.Bytes;
  */
 public class FetchRow<ROW_ID_TYPE> {
 
-	private static final Log LOG = LogFactory.getLog(FetchRow.class);
 	private byte[] currentFamily;
 	private Get get = new Get();
 	private byte[] tableName;
 	private HBase<? extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> hBase;
-	private Result result;
 
 	FetchRow(HBase<? extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> hBase, byte[] tableName) {
 		this.hBase = hBase;
@@ -47,12 +44,69 @@ public class FetchRow<ROW_ID_TYPE> {
 	}
 
 	public Row<ROW_ID_TYPE> row(ROW_ID_TYPE id) {
-		get = newGet(id);
-		fetch();
-		if (result.getRow() == null) {
-			return null;
-		}
-		return new ResultRow<ROW_ID_TYPE>(hBase, result);
+		return current().row(id);
+	}
+
+	/**
+	 * Fetches the rows of all the given ids with the current family and
+	 * column selection. The gets are grouped by region and run concurrently.
+	 * 
+	 * @param ids
+	 *            the {@link Iterable} of the id(s).
+	 * @return the rows found, in the order of the ids, and the ids of the
+	 *         rows that do not exist.
+	 */
+	public FetchedRows<ROW_ID_TYPE> rows(Iterable<ROW_ID_TYPE> ids) {
+		return current().rows(ids);
+	}
+
+	/**
+	 * Fetches the row of the given id with the current family and column
+	 * selection on the async executor.
+	 * 
+	 * @param id
+	 *            the id of the row.
+	 * @return a future of the row, the row is null if it does not exist.
+	 */
+	public Future<Row<ROW_ID_TYPE>> rowAsync(ROW_ID_TYPE id) {
+		return rowAsync(id, null);
+	}
+
+	/**
+	 * Fetches the row of the given id with the current family and column
+	 * selection on the async executor.
+	 * 
+	 * @param id
+	 *            the id of the row.
+	 * @param callback
+	 *            notified with the row, or null if it does not exist.
+	 * @return a future of the row.
+	 */
+	public Future<Row<ROW_ID_TYPE>> rowAsync(ROW_ID_TYPE id, AsyncCallback<Row<ROW_ID_TYPE>> callback) {
+		return current().rowAsync(id, callback);
+	}
+
+	/**
+	 * Fetches the rows of all the given ids on the async executor, see
+	 * {@link #rows(Iterable)}.
+	 */
+	public Future<FetchedRows<ROW_ID_TYPE>> rowsAsync(Iterable<ROW_ID_TYPE> ids) {
+		return rowsAsync(ids, null);
+	}
+
+	public Future<FetchedRows<ROW_ID_TYPE>> rowsAsync(Iterable<ROW_ID_TYPE> ids,
+			AsyncCallback<FetchedRows<ROW_ID_TYPE>> callback) {
+		return current().rowsAsync(ids, callback);
+	}
+
+	/**
+	 * Prepares a fetch with the current family and column selection that can
+	 * be shared by many threads and run for any id.
+	 * 
+	 * @return the {@link PreparedFetch}.
+	 */
+	public PreparedFetch<ROW_ID_TYPE> prepare() {
+		return new PreparedFetch<ROW_ID_TYPE>(hBase, tableName, get.getFamilyMap(), true);
 	}
 
 	public FetchRow<ROW_ID_TYPE> select() {
@@ -78,27 +132,12 @@ public class FetchRow<ROW_ID_TYPE> {
 		return this;
 	}
 
-	private void fetch() {
-		if (result == null) {
-			LOG.debug("Fetching row with id [" + Bytes.toString(get.getRow()) + "]");
-			result = hBase.getResult(tableName, get);
-		}
-	}
-
-	private Get newGet(ROW_ID_TYPE id) {
-		Get newGet = new Get(hBase.toBytes(id));
-		Map<byte[], NavigableSet<byte[]>> familyMap = get.getFamilyMap();
-		for (byte[] family : familyMap.keySet()) {
-			NavigableSet<byte[]> qualifiers = familyMap.get(family);
-			if (qualifiers == null) {
-				newGet.addFamily(family);
-			} else {
-				for (byte[] qualifier : qualifiers) {
-					newGet.addColumn(family, qualifier);
-				}
-			}
-		}
-		return newGet;
+	/**
+	 * Every call flushes the pending changes of the table first, so a row
+	 * saved after this fetch was created is read back.
+	 */
+	private PreparedFetch<ROW_ID_TYPE> current() {
+		return new PreparedFetch<ROW_ID_TYPE>(hBase, tableName, get.getFamilyMap(), true);
 	}
 
 }
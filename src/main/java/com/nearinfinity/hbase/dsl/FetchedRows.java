@@ -0,0 +1,70 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The rows found by a multi row fetch, in the order their ids were given. The
+ * ids of the rows that do not exist are kept, in the same order, so callers
+ * can tell which rows are missing.
+ * 
+ * @author Aaron McCurry
+ * 
+ * @param <ROW_ID_TYPE>
+ */
+public class FetchedRows<ROW_ID_TYPE> implements Iterable<Row<ROW_ID_TYPE>> {
+
+	private List<Row<ROW_ID_TYPE>> rows;
+	private List<ROW_ID_TYPE> missingIds;
+
+	FetchedRows(List<Row<ROW_ID_TYPE>> rows, List<ROW_ID_TYPE> missingIds) {
+		this.rows = Collections.unmodifiableList(rows);
+		this.missingIds = Collections.unmodifiableList(missingIds);
+	}
+
+	/**
+	 * @return the rows that were found.
+	 */
+	public List<Row<ROW_ID_TYPE>> getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the ids of the rows that do not exist.
+	 */
+	public List<ROW_ID_TYPE> getMissingIds() {
+		return missingIds;
+	}
+
+	/**
+	 * @return true if every row was found.
+	 */
+	public boolean isComplete() {
+		return missingIds.isEmpty();
+	}
+
+	@Override
+	public Iterator<Row<ROW_ID_TYPE>> iterator() {
+		return rows.iterator();
+	}
+
+}
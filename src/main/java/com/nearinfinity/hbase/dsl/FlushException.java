@@ -0,0 +1,45 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Thrown when the flush of one or more tables failed. The other tables were
+ * still flushed, the failure of each table is available by table name.
+ * 
+ * @author Aaron McCurry
+ */
+public class FlushException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+	private Map<String, RuntimeException> failures;
+
+	public FlushException(Map<String, RuntimeException> failures) {
+		super("Flush of tables " + failures.keySet() + " failed.", failures.values().iterator().next());
+		this.failures = Collections.unmodifiableMap(failures);
+	}
+
+	/**
+	 * @return the failure of each table that could not be flushed.
+	 */
+	public Map<String, RuntimeException> getFailures() {
+		return failures;
+	}
+}
@@ -17,21 +17,41 @@ package com.nearinfinity.hbase.dsl;
  * limitations under the License.
  */
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HServerAddress;
 import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HConnectionManager;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTablePool;
 import org.apache.hadoop.hbase.client.Put;
@@ -54,14 +74,65 @@ import com.nearinfinity.hbase.dsl.types.TypeConverter;
  */
 public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 
+	/**
+	 * The configuration key of the local directory that pending mutations are
+	 * journaled to, no journal is kept when this is not set.
+	 */
+	public static final String JOURNAL_DIR = "hbase.dsl.journal.dir";
+
+	/**
+	 * The configuration key of the size in bytes of a journal segment.
+	 */
+	public static final String JOURNAL_SEGMENT_SIZE = "hbase.dsl.journal.segment.size";
+
+	/**
+	 * The configuration key of the max number of idle table handles kept per
+	 * table for gets, scans and writes.
+	 */
+	public static final String TABLE_POOL_SIZE = "hbase.dsl.table.pool.size";
+
+	/**
+	 * The configuration key of the comma separated tables that are warmed up
+	 * when the object is created, see {@link #warmUp(String...)}.
+	 */
+	public static final String WARM_UP_TABLES = "hbase.dsl.warmup.tables";
+
 	private static final Log LOG = LogFactory.getLog(HBase.class);
-	private static final int MAX_QUEUE_SIZE = 1024;
-	private Map<byte[], Queue<Put>> putsMap = new TreeMap<byte[], Queue<Put>>(Bytes.BYTES_COMPARATOR);
-	private Map<byte[], Queue<Delete>> deletesMap = new TreeMap<byte[], Queue<Delete>>(Bytes.BYTES_COMPARATOR);
+	private static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final int DEFAULT_TABLE_POOL_SIZE = 16;
+	private static final int DEFAULT_DISPATCH_THREADS = 8;
+	private static final int DEFAULT_FLUSH_THREADS = 4;
+	private static final int DEFAULT_ASYNC_THREADS = 16;
+	private static final int MAX_COUNTER_SHARDS = 256;
+	private static final int MAX_WARM_UP_THREADS = 16;
+	private static final long DEFAULT_MAX_OPEN_DELETE_MILLIS = 1000;
+	private ConcurrentMap<byte[], MutationBuffer> buffers = new ConcurrentSkipListMap<byte[], MutationBuffer>(
+			Bytes.BYTES_COMPARATOR);
+	private volatile WriteBehindFlusher writeBehindFlusher;
+	private volatile BatchPolicy defaultBatchPolicy = new BatchPolicy();
+	private MutationJournal journal;
+	private ThreadLocal<MutationBuffer> openDeletes = new ThreadLocal<MutationBuffer>();
+	private ExecutorService defaultFlushExecutor = Executors.newFixedThreadPool(DEFAULT_FLUSH_THREADS,
+			new DaemonThreadFactory("hbase-dsl-flush"));
+	private volatile ExecutorService flushExecutor = defaultFlushExecutor;
+	private Thread shutdownHook;
+	private ExecutorService defaultAsyncExecutor = Executors.newFixedThreadPool(DEFAULT_ASYNC_THREADS,
+			new DaemonThreadFactory("hbase-dsl-async"));
+	private volatile ExecutorService asyncExecutor = defaultAsyncExecutor;
 	private HBaseConfiguration conf;
 	private HTablePool pool;
+	private int poolSize;
+	private BatchWriter batchWriter;
 	private Class<?> whereClauseType;
 	private TypeDriver typeDriver = new TypeDriver().registerAllKnownTypes();
+	private ConcurrentMap<byte[], RowCache> rowCaches = new ConcurrentSkipListMap<byte[], RowCache>(
+			Bytes.BYTES_COMPARATOR);
+	private ConcurrentMap<byte[], NegativeCache> negativeCaches = new ConcurrentSkipListMap<byte[], NegativeCache>(
+			Bytes.BYTES_COMPARATOR);
+	private SingleFlight singleFlight = new SingleFlight();
+	private AtomicLong flushes = new AtomicLong();
+	private volatile boolean coalesceFetches = true;
+	private ConcurrentMap<Class<?>, EntityMapper<?>> mappers = new ConcurrentHashMap<Class<?>, EntityMapper<?>>();
 	private Class<ROW_ID_TYPE> idType;
 	
 	@SuppressWarnings("unchecked")
@@ -82,8 +153,74 @@ public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 		this.whereClauseType = whereClauseType;
 		this.idType = idType;
 		this.conf = conf;
-		this.pool = new HTablePool(conf, 16);
+		this.poolSize = conf.getInt(TABLE_POOL_SIZE, DEFAULT_TABLE_POOL_SIZE);
+		this.pool = new HTablePool(conf, poolSize);
+		this.batchWriter = new BatchWriter(pool, DEFAULT_DISPATCH_THREADS);
+		String journalDir = conf.get(JOURNAL_DIR);
+		if (journalDir != null) {
+			openJournal(new File(journalDir), conf.getInt(JOURNAL_SEGMENT_SIZE, DEFAULT_JOURNAL_SEGMENT_SIZE));
+		}
 		setupAutoFlushOnShutdown();
+		String[] warmUpTables = conf.getStrings(WARM_UP_TABLES);
+		if (warmUpTables != null) {
+			try {
+				warmUp(warmUpTables);
+			} catch (RuntimeException e) {
+				LOG.warn("Warm up failed.", e);
+			}
+		}
+	}
+
+	/**
+	 * Prepares the given tables for the first reads and writes: a pooled
+	 * handle is created for each slot of the table pool, the locations of all
+	 * regions are looked up and cached, and a connection is opened to every
+	 * region server that hosts them. The tables are warmed up in parallel.
+	 * 
+	 * @param tableNames
+	 *            the table names.
+	 * @return the time the warm up took in milliseconds.
+	 */
+	public long warmUp(String... tableNames) {
+		byte[][] names = new byte[tableNames.length][];
+		for (int i = 0; i < tableNames.length; i++) {
+			names[i] = Bytes.toBytes(tableNames[i].trim());
+		}
+		return warmUp(names);
+	}
+
+	public long warmUp(byte[]... tableNames) {
+		long start = System.currentTimeMillis();
+		final Set<HServerAddress> servers = new ConcurrentSkipListSet<HServerAddress>();
+		final AtomicInteger regions = new AtomicInteger();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (final byte[] tableName : tableNames) {
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					regions.addAndGet(warmUpTable(tableName, servers));
+				}
+			});
+		}
+		runAll(tasks);
+		tasks.clear();
+		for (final HServerAddress server : servers) {
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						HConnectionManager.getConnection(conf).getHRegionConnection(server);
+					} catch (IOException e) {
+						throw new RuntimeException("Could not connect to region server [" + server + "]", e);
+					}
+				}
+			});
+		}
+		runAll(tasks);
+		long elapsed = System.currentTimeMillis() - start;
+		LOG.info("Warmed up [" + tableNames.length + "] tables with [" + regions.get() + "] regions on ["
+				+ servers.size() + "] region servers in [" + elapsed + " ms]");
+		return elapsed;
 	}
 
 	/**
@@ -121,12 +258,31 @@ public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 		return new SaveRow<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName);
 	}
 
+	/**
+	 * Creates a fetch for the given table.
+	 * The pending changes of the table are flushed first, so the calling
+	 * thread reads its own writes. A row delete that another thread may
+	 * still narrow to columns is held back for up to one write behind
+	 * interval, the linger time of the table or a second, so that delete may
+	 * not be visible yet.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @return the {@link FetchRow}.
+	 */
 	public FetchRow<ROW_ID_TYPE> fetch(String tableName) {
 		return fetch(Bytes.toBytes(tableName));
 	}
-	
+
+	/**
+	 * Creates a fetch for the given table, see {@link #fetch(String)}.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @return the {@link FetchRow}.
+	 */
 	public FetchRow<ROW_ID_TYPE> fetch(byte[] tableName) {
-		flush();
+		flushPending(tableName);
 		LOG.debug("fetch [" + tableName + "]");
 		return new FetchRow<ROW_ID_TYPE>(this, tableName);
 	}
@@ -136,7 +292,7 @@ public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 	}
 	
 	public TableAdmin defineTable(byte[] tableName) {
-		flush();
+		flushPending(tableName);
 		LOG.debug("defineTable [" + tableName + "]");
 		return new TableAdmin(tableName);
 	}
@@ -208,6 +364,11 @@ public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 	/**
 	 * Creates a scanner for the given table with a starting id and an ending
 	 * id.
+	 * The pending changes of the table are flushed first, so the calling
+	 * thread reads its own writes. A row delete that another thread may
+	 * still narrow to columns is held back for up to one write behind
+	 * interval, the linger time of the table or a second, so that delete may
+	 * not be visible yet.
 	 * 
 	 * @param tableName
 	 *            the table name.
@@ -218,13 +379,227 @@ public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 	 * @return the {@link Scanner}.
 	 */
 	public Scanner<QUERY_OP_TYPE, ROW_ID_TYPE> scan(byte[] tableName, ROW_ID_TYPE startId, ROW_ID_TYPE endId) {
-		flush();
+		flushPending(tableName);
 		LOG.debug("scan [" + tableName + "] startId [" + startId + "] endId [" + endId + "]");
+		return new Scanner<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName, startId, endId);
+	}
+
+	/**
+	 * Reads the value of a counter column, pending increments of the table
+	 * are flushed first.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param id
+	 *            the row id.
+	 * @param family
+	 *            the family.
+	 * @param qualifier
+	 *            the column name.
+	 * @return the counter value, 0 if the counter does not exist.
+	 */
+	public long counter(String tableName, ROW_ID_TYPE id, String family, String qualifier) {
+		return counter(tableName, id, family, qualifier, 1);
+	}
+
+	/**
+	 * Reads the total of a counter column that is spread over the given
+	 * number of shard rows, pending increments of the table are flushed first.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param id
+	 *            the row id.
+	 * @param family
+	 *            the family.
+	 * @param qualifier
+	 *            the column name.
+	 * @param shards
+	 *            the number of shard rows the counter was incremented with.
+	 * @return the counter total, 0 if the counter does not exist.
+	 */
+	public long counter(String tableName, ROW_ID_TYPE id, String family, String qualifier, int shards) {
+		return counter(Bytes.toBytes(tableName), id, Bytes.toBytes(family), Bytes.toBytes(qualifier), shards);
+	}
+
+	/**
+	 * Reads the total of a counter column that is spread over the given
+	 * number of shard rows, pending increments of the table are flushed first.
+	 * Shard rows are the row id prefixed by a single byte shard number, with
+	 * one shard the row id itself is used. They share the row key space of the
+	 * table, so a scan returns them like any other row. Keep sharded counters
+	 * in a table of their own if the table is also scanned.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param id
+	 *            the row id.
+	 * @param family
+	 *            the family.
+	 * @param qualifier
+	 *            the column name.
+	 * @param shards
+	 *            the number of shard rows the counter was incremented with.
+	 * @return the counter total, 0 if the counter does not exist.
+	 */
+	public long counter(byte[] tableName, ROW_ID_TYPE id, byte[] family, byte[] qualifier, int shards) {
+		checkShards(shards);
+		flushPending(tableName);
+		byte[] row = toBytes(id);
+		long total = 0;
+		for (int shard = 0; shard < shards; shard++) {
+			Get get = new Get(shards == 1 ? row : shardRow(row, shard));
+			get.addColumn(family, qualifier);
+			byte[] value = getResult(tableName, get).getValue(family, qualifier);
+			if (value != null) {
+				total += Bytes.toLong(value);
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Saves the fields of an entity annotated with
+	 * {@link com.nearinfinity.hbase.dsl.annotation.Column} through the write
+	 * buffer, fields that are null are not saved. The class must be annotated
+	 * with {@link com.nearinfinity.hbase.dsl.annotation.Table} and have a
+	 * {@link com.nearinfinity.hbase.dsl.annotation.RowId} field.
+	 * 
+	 * @param entity
+	 *            the entity.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> void saveEntity(T entity) {
+		getMapper((Class<T>) entity.getClass()).save(this, entity);
+	}
+
+	/**
+	 * Fetches the entity with the given row id.
+	 * 
+	 * @param id
+	 *            the row id, of the type of the row id field.
+	 * @param type
+	 *            the entity class.
+	 * @return the entity, or null if the row does not exist.
+	 */
+	public <T> T fetchEntity(Object id, Class<T> type) {
+		EntityMapper<T> mapper = getMapper(type);
+		flushPending(mapper.getTableName());
+		return mapper.toEntity(getResult(mapper.getTableName(), mapper.newGet(id)));
+	}
+
+	/**
+	 * Scans all the entities of the given class.
+	 * 
+	 * @param type
+	 *            the entity class.
+	 * @param forEach
+	 *            called with each entity.
+	 */
+	public <T> void scanEntities(Class<T> type, ForEach<T> forEach) {
+		EntityMapper<T> mapper = getMapper(type);
+		Scanner<QUERY_OP_TYPE, ROW_ID_TYPE> scanner = scan(mapper.getTableName());
+		mapper.addColumns(scanner);
+		Scanner.Results results = scanner.results();
+		try {
+			while (results.hasNext()) {
+				forEach.process(mapper.toEntity(results.next()));
+			}
+		} finally {
+			results.close();
+		}
+	}
+
+	/**
+	 * Starts a bulk load that writes HFiles for the given table into the
+	 * output directory, split on the current regions of the table. A table
+	 * that does not exist yet is written as a single region.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param outputDir
+	 *            the output directory, on the local or a distributed file
+	 *            system.
+	 * @return the {@link BulkLoad}.
+	 */
+	public BulkLoad<QUERY_OP_TYPE, ROW_ID_TYPE> bulkLoad(String tableName, String outputDir) {
+		return bulkLoad(Bytes.toBytes(tableName), outputDir);
+	}
+
+	/**
+	 * Starts a bulk load that writes HFiles for the given table into the
+	 * output directory, split on the current regions of the table. A table
+	 * that does not exist yet is written as a single region.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param outputDir
+	 *            the output directory, on the local or a distributed file
+	 *            system.
+	 * @return the {@link BulkLoad}.
+	 */
+	public BulkLoad<QUERY_OP_TYPE, ROW_ID_TYPE> bulkLoad(byte[] tableName, String outputDir) {
+		HTable table;
 		try {
-			HTable hTable = new HTable(conf, tableName);
-			return new Scanner<QUERY_OP_TYPE, ROW_ID_TYPE>(this, hTable, startId, endId);
+			table = pool.getTable(tableName);
+		} catch (RuntimeException e) {
+			if (!(e.getCause() instanceof TableNotFoundException)) {
+				throw e;
+			}
+			return bulkLoad(tableName, outputDir, new byte[][] { HConstants.EMPTY_START_ROW });
+		}
+		try {
+			return bulkLoad(tableName, outputDir, table.getStartKeys());
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			pool.putTable(table);
+		}
+	}
+
+	/**
+	 * Starts a bulk load that writes HFiles for the given table into the
+	 * output directory, split on the given region start keys.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param outputDir
+	 *            the output directory, on the local or a distributed file
+	 *            system.
+	 * @param startKeys
+	 *            the sorted start keys of the regions, the first one being
+	 *            empty.
+	 * @return the {@link BulkLoad}.
+	 */
+	public BulkLoad<QUERY_OP_TYPE, ROW_ID_TYPE> bulkLoad(byte[] tableName, String outputDir, byte[][] startKeys) {
+		LOG.debug("bulkLoad [" + tableName + "] outputDir [" + outputDir + "]");
+		return new BulkLoad<QUERY_OP_TYPE, ROW_ID_TYPE>(this, tableName, conf, new Path(outputDir), startKeys);
+	}
+
+	/**
+	 * Applies many independent conditional saves concurrently. The pending
+	 * changes of the tables involved are flushed first, so the checks see
+	 * them.
+	 * 
+	 * @param saves
+	 *            the conditional saves.
+	 * @return whether each save was applied, in the order of the given saves.
+	 */
+	public List<Boolean> apply(List<? extends SaveRow.ConditionalSave<?, ?>> saves) {
+		Map<byte[], byte[]> tableNames = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+		for (SaveRow.ConditionalSave<?, ?> save : saves) {
+			tableNames.put(save.tableName, save.tableName);
+		}
+		for (byte[] tableName : tableNames.keySet()) {
+			flushPending(tableName);
+		}
+		try {
+			return batchWriter.checkAndPut(saves);
+		} finally {
+			flushes.incrementAndGet();
+			for (SaveRow.ConditionalSave<?, ?> save : saves) {
+				invalidate(save.tableName, save.put.getRow());
+			}
 		}
 	}
 
@@ -245,7 +620,10 @@ public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 	 *            the table name.
 	 */
 	public void removeTable(byte[] tableName) {
-		flush();
+		flushPending(tableName);
+		for (ResultCache cache : getCaches(tableName)) {
+			cache.clear();
+		}
 		LOG.debug("removeTable [" + tableName + "]");
 		try {
 			HBaseAdmin hBaseAdmin = new HBaseAdmin(conf);
@@ -259,12 +637,131 @@ public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 	}
 
 	/**
-	 * Performs a flush of all pending changes for all tables.
+	 * Performs a flush of all pending changes for all tables. The tables are
+	 * flushed concurrently on the flush executor, within each table the puts
+	 * are still written before the deletes.
+	 * 
+	 * @throws FlushException
+	 *             if any table could not be flushed, after all the other
+	 *             tables have been flushed.
 	 */
 	public void flush() {
 		LOG.debug("flush");
-		for (byte[] tableName : putsMap.keySet()) {
-			flush(tableName);
+		closeDeletes();
+		flushTables(true);
+		WriteBehindFlusher flusher = writeBehindFlusher;
+		if (flusher != null) {
+			flusher.checkFailure();
+		}
+	}
+
+	/**
+	 * Starts a flush of all pending changes for all tables on a background
+	 * thread. Changes saved after this call may or may not be part of the
+	 * flush.
+	 * 
+	 * @return a future that completes once the flush is done, its
+	 *         {@link Future#get()} throws the {@link FlushException} of the
+	 *         flush wrapped in an {@link ExecutionException}.
+	 */
+	public Future<Void> flushAsync() {
+		return flushAsync(null);
+	}
+
+	/**
+	 * Starts a flush of all pending changes for all tables on a background
+	 * thread.
+	 * 
+	 * @param callback
+	 *            notified once the flush is done.
+	 * @return a future that completes once the flush is done.
+	 */
+	public Future<Void> flushAsync(AsyncCallback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				flush();
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Sets the executor that runs the asynchronous fetches, scans and
+	 * flushes. Operations queue up once all its threads are busy, so the
+	 * number of threads bounds the number of concurrent calls to the tables
+	 * and not the number of outstanding operations. The executor is not shut
+	 * down by this object, the default executor is shut down once it has been
+	 * replaced.
+	 * 
+	 * @param executor
+	 *            the executor.
+	 */
+	public void setAsyncExecutor(ExecutorService executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Async executor can not be null.");
+		}
+		asyncExecutor = executor;
+		defaultAsyncExecutor.shutdown();
+	}
+
+	/**
+	 * Enables write behind, pending changes are flushed by a background thread
+	 * every flush interval (or sooner once a table has a full queue) instead of
+	 * on the calling thread. Callers block once the max number of pending
+	 * mutations has been reached.
+	 * 
+	 * @param flushInterval
+	 *            the time between background flushes.
+	 * @param unit
+	 *            the unit of the flush interval.
+	 * @param maxPendingMutations
+	 *            the max number of puts and deletes that can be pending.
+	 */
+	public void enableWriteBehind(long flushInterval, TimeUnit unit, int maxPendingMutations) {
+		enableWriteBehind(flushInterval, unit, maxPendingMutations, true);
+	}
+
+	/**
+	 * Enables write behind, pending changes are flushed by a background thread
+	 * every flush interval (or sooner once a table has a full queue) instead of
+	 * on the calling thread.
+	 * 
+	 * @param flushInterval
+	 *            the time between background flushes.
+	 * @param unit
+	 *            the unit of the flush interval.
+	 * @param maxPendingMutations
+	 *            the max number of puts and deletes that can be pending.
+	 * @param blockWhenFull
+	 *            if true callers block once the max number of pending mutations
+	 *            has been reached, otherwise an {@link IllegalStateException}
+	 *            is thrown.
+	 */
+	public synchronized void enableWriteBehind(long flushInterval, TimeUnit unit, int maxPendingMutations,
+			boolean blockWhenFull) {
+		disableWriteBehind();
+		flush();
+		LOG.info("Enabling write behind, flush interval [" + unit.toMillis(flushInterval)
+				+ " ms] max pending mutations [" + maxPendingMutations + "]");
+		writeBehindFlusher = new WriteBehindFlusher(this, flushInterval, unit, maxPendingMutations, blockWhenFull);
+	}
+
+	/**
+	 * Stops the background flushing and flushes all pending changes on the
+	 * calling thread.
+	 */
+	public synchronized void disableWriteBehind() {
+		WriteBehindFlusher flusher = writeBehindFlusher;
+		if (flusher == null) {
+			return;
+		}
+		LOG.info("Disabling write behind");
+		flusher.shutdown();
+		try {
+			flush();
+		} finally {
+			writeBehindFlusher = null;
 		}
 	}
 
@@ -278,6 +775,222 @@ public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 		flush(Bytes.toBytes(tableName));
 	}
 
+	/**
+	 * Sets the executor that flushes the tables of {@link #flush()}
+	 * concurrently. The executor is not shut down by this object, the default
+	 * executor is shut down once it has been replaced.
+	 * 
+	 * @param executor
+	 *            the executor, or null to flush the tables one after another
+	 *            on the calling thread.
+	 */
+	public void setFlushExecutor(ExecutorService executor) {
+		flushExecutor = executor;
+		defaultFlushExecutor.shutdown();
+	}
+
+	/**
+	 * Flushes all pending changes and stops the threads started by this
+	 * object, executors set by the caller are not shut down. Nothing can be
+	 * saved once this object has been closed when a journal is kept.
+	 */
+	public synchronized void close() {
+		LOG.info("Closing");
+		disableWriteBehind();
+		try {
+			flush();
+		} finally {
+			flushExecutor = null;
+			defaultFlushExecutor.shutdown();
+			defaultAsyncExecutor.shutdown();
+			batchWriter.shutdown();
+			if (journal != null) {
+				journal.close();
+			}
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// the hook is already running
+			}
+		}
+	}
+
+	/**
+	 * Sets the {@link BatchPolicy} used by tables that do not have their own.
+	 * 
+	 * @param policy
+	 *            the batch policy.
+	 */
+	public void setDefaultBatchPolicy(BatchPolicy policy) {
+		defaultBatchPolicy = policy;
+	}
+
+	/**
+	 * Sets the {@link BatchPolicy} for the given table.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param policy
+	 *            the batch policy, or null to use the default policy.
+	 */
+	public void setBatchPolicy(String tableName, BatchPolicy policy) {
+		setBatchPolicy(Bytes.toBytes(tableName), policy);
+	}
+
+	/**
+	 * Sets the {@link BatchPolicy} for the given table.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param policy
+	 *            the batch policy, or null to use the default policy.
+	 */
+	public void setBatchPolicy(byte[] tableName, BatchPolicy policy) {
+		LOG.debug("setBatchPolicy [" + tableName + "] " + policy);
+		getBuffer(tableName).setPolicy(policy);
+	}
+
+	/**
+	 * Sets whether concurrent fetches of the same row, families and columns
+	 * share a single get, which is the default. Fetches with a filter, a time
+	 * range or more than one version are never shared.
+	 * 
+	 * @param coalesceFetches
+	 *            true to share identical fetches.
+	 */
+	public void setCoalesceFetches(boolean coalesceFetches) {
+		this.coalesceFetches = coalesceFetches;
+	}
+
+	/**
+	 * Enables a row cache for the given table. Fetches of single rows are
+	 * served from the cache, writes and deletes made through this object
+	 * remove the rows they touch. Fetches with a filter, a time range or more
+	 * than one version bypass the cache.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param maxBytes
+	 *            the max estimated size in bytes of the cached rows.
+	 * @param ttl
+	 *            the time a fetched row is cached, or a negative number to
+	 *            cache rows until they are evicted or written.
+	 * @param unit
+	 *            the unit of the time to live.
+	 */
+	public void enableRowCache(String tableName, long maxBytes, long ttl, TimeUnit unit) {
+		enableRowCache(Bytes.toBytes(tableName), maxBytes, ttl, unit);
+	}
+
+	public void enableRowCache(byte[] tableName, long maxBytes, long ttl, TimeUnit unit) {
+		LOG.info("Enabling row cache for table [" + Bytes.toString(tableName) + "] max bytes [" + maxBytes
+				+ "] ttl [" + unit.toMillis(ttl) + " ms]");
+		rowCaches.put(tableName, new RowCache(maxBytes, ttl < 0 ? -1 : unit.toMillis(ttl)));
+	}
+
+	public void disableRowCache(String tableName) {
+		disableRowCache(Bytes.toBytes(tableName));
+	}
+
+	public void disableRowCache(byte[] tableName) {
+		rowCaches.remove(tableName);
+	}
+
+	/**
+	 * @return the statistics of the row cache of the given table, or null if
+	 *         the table has no row cache.
+	 */
+	public CacheStats getRowCacheStats(String tableName) {
+		return getRowCacheStats(Bytes.toBytes(tableName));
+	}
+
+	public CacheStats getRowCacheStats(byte[] tableName) {
+		RowCache cache = rowCaches.get(tableName);
+		return cache == null ? null : cache.getStats();
+	}
+
+	/**
+	 * Enables a negative cache for the given table. Rows that a fetch found
+	 * missing are remembered for up to the time to live, and fetching them
+	 * again returns null without going to the table. Writes and deletes made
+	 * through this object forget the rows they touch, writes made by other
+	 * clients are only seen once the time to live has passed.
+	 * 
+	 * @param tableName
+	 *            the table name.
+	 * @param ttl
+	 *            the max time a missing row is remembered.
+	 * @param unit
+	 *            the unit of the time to live.
+	 * @param maxEntries
+	 *            the max number of missing rows remembered.
+	 */
+	public void enableNegativeCache(String tableName, long ttl, TimeUnit unit, int maxEntries) {
+		enableNegativeCache(Bytes.toBytes(tableName), ttl, unit, maxEntries);
+	}
+
+	public void enableNegativeCache(byte[] tableName, long ttl, TimeUnit unit, int maxEntries) {
+		LOG.info("Enabling negative cache for table [" + Bytes.toString(tableName) + "] ttl ["
+				+ unit.toMillis(ttl) + " ms] max entries [" + maxEntries + "]");
+		negativeCaches.put(tableName, new NegativeCache(unit.toMillis(ttl), maxEntries));
+	}
+
+	public void disableNegativeCache(String tableName) {
+		disableNegativeCache(Bytes.toBytes(tableName));
+	}
+
+	public void disableNegativeCache(byte[] tableName) {
+		negativeCaches.remove(tableName);
+	}
+
+	/**
+	 * @return the statistics of the negative cache of the given table, or null
+	 *         if the table has no negative cache.
+	 */
+	public CacheStats getNegativeCacheStats(String tableName) {
+		return getNegativeCacheStats(Bytes.toBytes(tableName));
+	}
+
+	public CacheStats getNegativeCacheStats(byte[] tableName) {
+		NegativeCache cache = negativeCaches.get(tableName);
+		return cache == null ? null : cache.getStats();
+	}
+
+	/**
+	 * Sets the {@link RetryPolicy} used when flushed mutations fail.
+	 * 
+	 * @param policy
+	 *            the retry policy.
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		batchWriter.setRetryPolicy(policy);
+	}
+
+	/**
+	 * Sets the number of threads that write the mutations of a flush. A flush
+	 * is split by region server and the parts are written concurrently, with
+	 * a single thread they are written one after another on the flushing
+	 * thread.
+	 * 
+	 * @param dispatchThreads
+	 *            the number of threads.
+	 */
+	public void setDispatchThreads(int dispatchThreads) {
+		batchWriter.setDispatchThreads(dispatchThreads);
+	}
+
+	/**
+	 * Sets the {@link DeadLetterHandler} that receives the mutations that
+	 * still fail after all retries. Without a handler the flush fails with an
+	 * exception.
+	 * 
+	 * @param handler
+	 *            the dead letter handler, or null to throw an exception.
+	 */
+	public void setDeadLetterHandler(DeadLetterHandler handler) {
+		batchWriter.setDeadLetterHandler(handler);
+	}
+
 	/**
 	 * Creates a {@link DeletedRow} object for the given table.
 	 * 
@@ -354,39 +1067,117 @@ public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 			public Scanner<QUERY_OP_TYPE, ROW_ID_TYPE> scan(ROW_ID_TYPE startId, ROW_ID_TYPE endId) {
 				return HBase.this.scan(tableName, startId, endId);
 			}
+
+			@Override
+			public long counter(ROW_ID_TYPE id, String family, String qualifier) {
+				return counter(id, family, qualifier, 1);
+			}
+
+			@Override
+			public long counter(ROW_ID_TYPE id, String family, String qualifier, int shards) {
+				return HBase.this.counter(tableName, id, Bytes.toBytes(family), Bytes.toBytes(qualifier), shards);
+			}
+
+			@Override
+			public Table<QUERY_OP_TYPE, ROW_ID_TYPE> batchPolicy(BatchPolicy policy) {
+				HBase.this.setBatchPolicy(tableName, policy);
+				return this;
+			}
 		};
 	}
 
 	public void flush(byte[] tableName) {
 		LOG.debug("flush [" + tableName + "]");
-		Queue<Put> puts = getPuts(tableName);
-		if (puts != null) {
-			flushPuts(tableName, puts);
-		}
-		Queue<Delete> deletes = getDeletes(tableName);
-		if (deletes != null) {
-			flushDeletes(tableName, deletes);
-		}
+		closeDeletes();
+		flush(tableName, true);
 	}
 
 	protected Row<ROW_ID_TYPE> convert(Result result) {
 		return new ResultRow<ROW_ID_TYPE>(this, result);
 	}
 
-	protected void savePut(byte[] tableName, Put put) {
-		Queue<Put> puts = getPuts(tableName);
-		if (puts.size() >= MAX_QUEUE_SIZE) {
-			flushPuts(tableName, puts);
+	/**
+	 * Adds a column to the given put and queues the put if it is not already
+	 * pending.
+	 * 
+	 * @return the put that holds the column, this is a new put for the same
+	 *         row if the given put has already been flushed.
+	 */
+	protected Put savePut(byte[] tableName, Put put, byte[] family, byte[] qualifier, Long timestamp, byte[] value) {
+		MutationBuffer buffer = getBuffer(tableName);
+		boolean newPut = put.isEmpty();
+		closeDeletes();
+		checkQueue(tableName, buffer);
+		invalidate(tableName, put.getRow());
+		Put current = buffer.addColumn(put, family, qualifier, timestamp == null ? HConstants.LATEST_TIMESTAMP
+				: timestamp, value);
+		if (newPut || current != put) {
+			queued();
 		}
-		puts.add(put);
+		return current;
+	}
+
+	/**
+	 * Registers a callback for the mutations of the given table that the
+	 * calling thread has queued so far.
+	 */
+	protected void saveCallback(byte[] tableName, WriteCallback callback) {
+		closeDeletes();
+		getBuffer(tableName).addCallback(callback);
 	}
 
+	/**
+	 * Queues a row delete that stays open, so the calling thread can still
+	 * narrow it to columns, until the thread saves, deletes, flushes or reads
+	 * through this object again.
+	 */
 	protected void saveDelete(byte[] tableName, Delete delete) {
-		Queue<Delete> deletes = getDeletes(tableName);
-		if (deletes.size() >= MAX_QUEUE_SIZE) {
-			flushDeletes(tableName, deletes);
+		MutationBuffer buffer = getBuffer(tableName);
+		closeDeletes();
+		checkQueue(tableName, buffer);
+		invalidate(tableName, delete.getRow());
+		buffer.openDelete(delete);
+		openDeletes.set(buffer);
+		queued();
+	}
+
+	/**
+	 * Narrows the given delete to a single column.
+	 * 
+	 * @return the delete that holds the column, this is a new delete of just
+	 *         the column if the given delete has already been closed.
+	 */
+	protected Delete saveDeleteColumn(byte[] tableName, Delete delete, byte[] family, byte[] qualifier) {
+		MutationBuffer buffer = getBuffer(tableName);
+		if (openDeletes.get() != buffer) {
+			closeDeletes();
+		}
+		invalidate(tableName, delete.getRow());
+		Delete current = buffer.addDeleteColumn(delete, family, qualifier);
+		openDeletes.set(buffer);
+		if (current != delete) {
+			queued();
+		}
+		return current;
+	}
+
+	/**
+	 * Queues an increment of a counter column. With more than one shard the
+	 * increment goes to the shard row picked by the calling thread.
+	 */
+	protected void saveIncrement(byte[] tableName, byte[] row, byte[] family, byte[] qualifier, long amount,
+			int shards) {
+		checkShards(shards);
+		if (shards > 1) {
+			row = shardRow(row, (int) (Thread.currentThread().getId() % shards));
+		}
+		MutationBuffer buffer = getBuffer(tableName);
+		closeDeletes();
+		checkQueue(tableName, buffer);
+		invalidate(tableName, row);
+		if (buffer.addIncrement(row, family, qualifier, amount)) {
+			queued();
 		}
-		deletes.add(delete);
 	}
 
 	protected byte[] toBytes(Object o) {
@@ -414,70 +1205,658 @@ public class HBase<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 		}
 	}
 
+	/**
+	 * Fetches many rows at once, the gets are grouped by region and run
+	 * concurrently.
+	 * 
+	 * @return the results, in the order of the given gets.
+	 */
+	protected List<Result> getResults(byte[] tableName, List<Get> gets) {
+		List<ResultCache> caches = getCaches(tableName);
+		if (caches.isEmpty()) {
+			return batchWriter.get(tableName, gets);
+		}
+		List<Result> results = new ArrayList<Result>();
+		List<Integer> missed = new ArrayList<Integer>();
+		List<Get> missedGets = new ArrayList<Get>();
+		for (Get get : gets) {
+			Result result = getCached(caches, get);
+			if (result == null) {
+				missed.add(results.size());
+				missedGets.add(get);
+			}
+			results.add(result);
+		}
+		if (missedGets.isEmpty()) {
+			return results;
+		}
+		long[] generations = generations(caches);
+		List<Result> fetched = batchWriter.get(tableName, missedGets);
+		for (int i = 0; i < fetched.size(); i++) {
+			cache(caches, missedGets.get(i), fetched.get(i), generations);
+			results.set(missed.get(i), fetched.get(i));
+		}
+		return results;
+	}
+
 	protected Result getResult(byte[] tableName, Get get) {
-		HTable table = pool.getTable(tableName);
+		List<ResultCache> caches = getCaches(tableName);
+		Result result = getCached(caches, get);
+		if (result != null) {
+			return result;
+		}
+		long[] generations = generations(caches);
+		ByteBuffer projection = coalesceFetches ? RowCache.projection(get) : null;
+		if (projection == null) {
+			result = fetch(tableName, get);
+		} else {
+			result = singleFlight.get(flightKey(tableName, get.getRow(), projection), fetchTask(tableName, get));
+		}
+		cache(caches, get, result, generations);
+		return result;
+	}
+
+	/**
+	 * Fills the pool of the given table and caches the location of each of its
+	 * regions, the region servers that host them are added to the given set.
+	 * 
+	 * @return the number of regions.
+	 */
+	int warmUpTable(byte[] tableName, Set<HServerAddress> servers) {
+		List<HTable> tables = new ArrayList<HTable>();
 		try {
-			return table.get(get);
+			for (int i = 0; i < poolSize; i++) {
+				tables.add(pool.getTable(tableName));
+			}
+			HTable table = tables.get(0);
+			byte[][] startKeys = table.getStartKeys();
+			for (byte[] startKey : startKeys) {
+				servers.add(table.getRegionLocation(startKey).getServerAddress());
+			}
+			return startKeys.length;
 		} catch (IOException e) {
-			throw new RuntimeException(e);
+			throw new RuntimeException("Warming up table [" + Bytes.toString(tableName) + "] failed.", e);
 		} finally {
-			pool.putTable(table);
+			for (HTable table : tables) {
+				pool.putTable(table);
+			}
+		}
+	}
+
+	/**
+	 * Runs the tasks on a short lived pool and waits for them, throwing the
+	 * first failure once they are all done.
+	 */
+	private void runAll(List<Runnable> tasks) {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(tasks.size(), MAX_WARM_UP_THREADS),
+				new DaemonThreadFactory("hbase-dsl-warm-up"));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (Runnable task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			RuntimeException failure = null;
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					RuntimeException cause = e.getCause() instanceof RuntimeException ? (RuntimeException) e
+							.getCause() : new RuntimeException(e.getCause());
+					if (failure == null) {
+						failure = cause;
+					} else {
+						LOG.error("Warm up failed.", cause);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			executor.shutdown();
 		}
 	}
 
+	/**
+	 * Takes a handle of the given table from the pool, it has to be given
+	 * back with {@link #putTable(HTable)}.
+	 */
+	HTable getTable(byte[] tableName) {
+		return pool.getTable(tableName);
+	}
+
+	void putTable(HTable table) {
+		pool.putTable(table);
+	}
+
 	protected Class<ROW_ID_TYPE> getIdType() {
 		return (Class<ROW_ID_TYPE>) idType;
 	}
 
-	private Queue<Delete> getDeletes(byte[] tableName) {
-		Queue<Delete> queue = deletesMap.get(tableName);
-		if (queue == null) {
-			queue = new ConcurrentLinkedQueue<Delete>();
-			deletesMap.put(tableName, queue);
+	/**
+	 * Flushes all tables except for the open deletes of other threads, this
+	 * is called by the write behind thread.
+	 */
+	void flushClosed() {
+		flushTables(false);
+	}
+
+	void flushClosed(byte[] tableName) {
+		flush(tableName, false);
+	}
+
+	/**
+	 * Flushes all tables on the flush executor and waits for them, failures
+	 * are collected into a single {@link FlushException}.
+	 */
+	private void flushTables(final boolean includeOpen) {
+		List<byte[]> tableNames = getBufferedTables();
+		Map<String, RuntimeException> failures = new TreeMap<String, RuntimeException>();
+		ExecutorService executor = flushExecutor;
+		boolean inline = executor == null || tableNames.size() == 1;
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final byte[] tableName : tableNames) {
+			Runnable flush = new Runnable() {
+				@Override
+				public void run() {
+					flush(tableName, includeOpen);
+				}
+			};
+			if (inline) {
+				try {
+					flush.run();
+				} catch (RuntimeException e) {
+					failures.put(Bytes.toString(tableName), e);
+				}
+			} else {
+				futures.add(executor.submit(flush));
+			}
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			String tableName = Bytes.toString(tableNames.get(i));
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				failures.put(tableName, cause instanceof RuntimeException ? (RuntimeException) cause
+						: new RuntimeException(cause));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failures.put(tableName, new RuntimeException(e));
+			}
+		}
+		if (!failures.isEmpty()) {
+			throw new FlushException(failures);
+		}
+	}
+
+	/**
+	 * Flushes the given table, the open deletes of live threads are only
+	 * sent when they are included or have been open for too long, see
+	 * {@link #maxOpenDeleteMillis(MutationBuffer)}.
+	 */
+	private void flush(byte[] tableName, boolean includeOpen) {
+		MutationBuffer buffer = getBuffer(tableName);
+		synchronized (buffer.flushLock) {
+			MutationJournal.Flush journaled = null;
+			if (journal != null) {
+				// anything journaled after this is in the current segment or a later one
+				long segment = journal.currentSegment();
+				journaled = journal.startFlush(Math.min(segment, buffer.oldestSegment()));
+			}
+			boolean failed = true;
+			try {
+				flush(tableName, buffer.drain(includeOpen ? 0 : maxOpenDeleteMillis(buffer)));
+				failed = false;
+			} finally {
+				if (journaled != null) {
+					journal.endFlush(journaled, failed);
+				}
+			}
 		}
-		return queue;
+		releaseJournal();
 	}
 
-	private void flushDeletes(byte[] tableName, Queue<Delete> deletes) {
+	/**
+	 * How long a flush that leaves open deletes alone holds back an open
+	 * delete of a live thread: one write behind interval, otherwise the
+	 * linger time of the table, otherwise a second. A thread that sits idle
+	 * in a pool after a delete so never keeps the delete from being sent.
+	 */
+	private long maxOpenDeleteMillis(MutationBuffer buffer) {
+		WriteBehindFlusher flusher = writeBehindFlusher;
+		if (flusher != null) {
+			return flusher.getFlushIntervalMillis();
+		}
+		long linger = getBatchPolicy(buffer).getLingerMillis();
+		return linger >= 0 ? linger : DEFAULT_MAX_OPEN_DELETE_MILLIS;
+	}
+
+	/**
+	 * Deletes the journal segments that no longer hold a pending mutation of
+	 * any table.
+	 */
+	private void releaseJournal() {
+		if (journal == null) {
+			return;
+		}
+		long oldest = journal.currentSegment();
+		for (MutationBuffer buffer : buffers.values()) {
+			oldest = Math.min(oldest, buffer.oldestSegment());
+		}
+		journal.release(oldest);
+	}
+
+	private void flush(byte[] tableName, MutationBuffer.Batch batch) {
+		// the write behind limit counted every queued mutation, not the merged ones
+		int mutations = batch.queued;
+		int size = batch.size();
+		if (size > 0 && getBatchPolicy(getBuffer(tableName)).isCoalesce()) {
+			batch = MutationCoalescer.coalesce(batch);
+			LOG.debug("coalesced [" + size + "] mutations into [" + batch.size() + "]");
+		}
+		try {
+			// every part is written even if an earlier one failed, the drained
+			// mutations have no other way back to the table
+			IOException deadLettered = null;
+			RuntimeException failure = null;
+			if (!batch.puts.isEmpty()) {
+				try {
+					deadLettered = batchWriter.writePuts(tableName, batch.puts);
+				} catch (RuntimeException e) {
+					failure = failed(failure, e);
+				}
+			}
+			if (!batch.deletes.isEmpty()) {
+				try {
+					IOException e = batchWriter.writeDeletes(tableName, batch.deletes);
+					deadLettered = deadLettered == null ? e : deadLettered;
+				} catch (RuntimeException e) {
+					failure = failed(failure, e);
+				}
+			}
+			if (!batch.counters.isEmpty()) {
+				try {
+					batchWriter.writeIncrements(tableName, batch.counters);
+				} catch (RuntimeException e) {
+					failure = failed(failure, e);
+				}
+			}
+			if (failure != null) {
+				for (WriteCallback callback : batch.callbacks) {
+					notify(callback, failure);
+				}
+				throw failure;
+			}
+			for (WriteCallback callback : batch.callbacks) {
+				notify(callback, deadLettered);
+			}
+		} finally {
+			if (mutations > 0) {
+				flushes.incrementAndGet();
+			}
+			invalidate(tableName, batch);
+			WriteBehindFlusher flusher = writeBehindFlusher;
+			if (flusher != null) {
+				flusher.release(mutations);
+			}
+		}
+	}
+
+	/**
+	 * @return the first failure of a flush, later ones are logged.
+	 */
+	private static RuntimeException failed(RuntimeException first, RuntimeException e) {
+		if (first == null) {
+			return e;
+		}
+		LOG.error("Flush failed.", e);
+		return first;
+	}
+
+	/**
+	 * Runs the given task on the async executor.
+	 * 
+	 * @param callback
+	 *            notified once the task is done, may be null.
+	 */
+	<T> Future<T> submit(Callable<T> task, final AsyncCallback<T> callback) {
+		FutureTask<T> future = new FutureTask<T>(task) {
+			@Override
+			protected void done() {
+				if (callback == null || isCancelled()) {
+					return;
+				}
+				try {
+					T result;
+					try {
+						result = get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						callback.failed(cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
+						return;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						callback.failed(e);
+						return;
+					}
+					callback.completed(result);
+				} catch (RuntimeException e) {
+					LOG.error("Async callback [" + callback + "] failed.", e);
+				}
+			}
+		};
+		asyncExecutor.execute(future);
+		return future;
+	}
+
+	private Result fetch(byte[] tableName, Get get) {
 		HTable table = pool.getTable(tableName);
 		try {
-			table.delete(new ArrayList<Delete>(deletes));
+			return table.get(get);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		} finally {
 			pool.putTable(table);
 		}
-		deletes.clear();
 	}
 
-	private void flushPuts(byte[] tableName, Queue<Put> puts) {
-		HTable table = pool.getTable(tableName);
+	private Callable<Result> fetchTask(final byte[] tableName, final Get get) {
+		return new Callable<Result>() {
+			@Override
+			public Result call() {
+				return fetch(tableName, get);
+			}
+		};
+	}
+
+	/**
+	 * Builds the key under which identical fetches are shared. The key holds
+	 * the number of flushes so far, a fetch never joins a fetch that started
+	 * before the latest flush and so always sees the writes flushed before
+	 * it.
+	 */
+	private ByteBuffer flightKey(byte[] tableName, byte[] row, ByteBuffer projection) {
+		ByteBuffer key = ByteBuffer.allocate(Bytes.SIZEOF_LONG + 2 * Bytes.SIZEOF_INT + tableName.length
+				+ row.length + projection.remaining());
+		key.putLong(flushes.get());
+		key.putInt(tableName.length).put(tableName);
+		key.putInt(row.length).put(row);
+		key.put(projection.duplicate());
+		key.flip();
+		return key;
+	}
+
+	/**
+	 * @return the row cache and negative cache of the given table, the
+	 *         negative cache first.
+	 */
+	private List<ResultCache> getCaches(byte[] tableName) {
+		ResultCache negativeCache = negativeCaches.get(tableName);
+		ResultCache rowCache = rowCaches.get(tableName);
+		if (negativeCache == null && rowCache == null) {
+			return Collections.emptyList();
+		}
+		List<ResultCache> caches = new ArrayList<ResultCache>(2);
+		if (negativeCache != null) {
+			caches.add(negativeCache);
+		}
+		if (rowCache != null) {
+			caches.add(rowCache);
+		}
+		return caches;
+	}
+
+	private Result getCached(List<ResultCache> caches, Get get) {
+		if (caches.isEmpty()) {
+			return null;
+		}
+		ByteBuffer projection = RowCache.projection(get);
+		if (projection == null) {
+			return null;
+		}
+		for (ResultCache cache : caches) {
+			Result result = cache.get(get.getRow(), projection);
+			if (result != null) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	private long[] generations(List<ResultCache> caches) {
+		long[] generations = new long[caches.size()];
+		for (int i = 0; i < generations.length; i++) {
+			generations[i] = caches.get(i).generation();
+		}
+		return generations;
+	}
+
+	private void cache(List<ResultCache> caches, Get get, Result result, long[] generations) {
+		if (caches.isEmpty()) {
+			return;
+		}
+		ByteBuffer projection = RowCache.projection(get);
+		if (projection == null) {
+			return;
+		}
+		for (int i = 0; i < generations.length; i++) {
+			caches.get(i).put(get.getRow(), projection, result, generations[i]);
+		}
+	}
+
+	private void invalidate(byte[] tableName, byte[] row) {
+		for (ResultCache cache : getCaches(tableName)) {
+			cache.invalidate(row);
+		}
+	}
+
+	/**
+	 * Invalidates the rows of a flushed batch again, as a fetch that ran
+	 * while the batch was pending may have cached the old values.
+	 */
+	private void invalidate(byte[] tableName, MutationBuffer.Batch batch) {
+		for (ResultCache cache : getCaches(tableName)) {
+			for (Put put : batch.puts) {
+				cache.invalidate(put.getRow());
+			}
+			for (Delete delete : batch.deletes) {
+				cache.invalidate(delete.getRow());
+			}
+			for (MutationBuffer.Counter counter : batch.counters) {
+				cache.invalidate(counter.row);
+			}
+		}
+	}
+
+	private void notify(WriteCallback callback, Exception cause) {
 		try {
-			table.put(new ArrayList<Put>(puts));
+			if (cause == null) {
+				callback.written();
+			} else {
+				callback.failed(cause);
+			}
+		} catch (RuntimeException e) {
+			LOG.error("Write callback [" + callback + "] failed.", e);
+		}
+	}
+
+	/**
+	 * Flushes the pending changes of the given table before it is read, so
+	 * reads see earlier writes without paying for the other tables. Tables
+	 * that have never been written to are skipped.
+	 */
+	void flushPending(byte[] tableName) {
+		closeDeletes();
+		if (buffers.containsKey(tableName)) {
+			flush(tableName, false);
+		}
+		WriteBehindFlusher flusher = writeBehindFlusher;
+		if (flusher != null) {
+			flusher.checkFailure();
+		}
+	}
+
+	private void checkQueue(byte[] tableName, MutationBuffer buffer) {
+		BatchPolicy policy = getBatchPolicy(buffer);
+		WriteBehindFlusher flusher = writeBehindFlusher;
+		if (flusher != null) {
+			flusher.checkCapacity();
+			if (buffer.isFull(policy)) {
+				flusher.requestFlush(tableName);
+			} else if (policy.getLingerMillis() >= 0 && buffer.isEmpty()) {
+				flusher.scheduleFlush(tableName, policy.getLingerMillis());
+			}
+		} else if (buffer.isFull(policy)) {
+			flush(tableName, false);
+		}
+	}
+
+	/**
+	 * Closes the open delete of the calling thread, its delete chain is done
+	 * once the thread does anything else through this object.
+	 */
+	private void closeDeletes() {
+		MutationBuffer buffer = openDeletes.get();
+		if (buffer != null) {
+			buffer.closeDeletes();
+			openDeletes.remove();
+		}
+	}
+
+	private BatchPolicy getBatchPolicy(MutationBuffer buffer) {
+		BatchPolicy policy = buffer.getPolicy();
+		if (policy == null) {
+			return defaultBatchPolicy;
+		}
+		return policy;
+	}
+
+	private void queued() {
+		WriteBehindFlusher flusher = writeBehindFlusher;
+		if (flusher != null) {
+			flusher.acquire();
+		}
+	}
+
+	private MutationBuffer getBuffer(byte[] tableName) {
+		MutationBuffer buffer = buffers.get(tableName);
+		if (buffer == null) {
+			MutationBuffer newBuffer = new MutationBuffer(tableName, journal);
+			buffer = buffers.putIfAbsent(tableName, newBuffer);
+			if (buffer == null) {
+				buffer = newBuffer;
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Opens the journal and flushes the mutations left in it by a previous
+	 * process, before anything new is journaled.
+	 */
+	private void openJournal(File dir, int segmentSize) {
+		MutationJournal newJournal;
+		try {
+			newJournal = new MutationJournal(dir, segmentSize);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			pool.putTable(table);
 		}
-		puts.clear();
+		try {
+			final Map<Long, Delete> deletes = new TreeMap<Long, Delete>();
+			final Map<byte[], Put> puts = new TreeMap<byte[], Put>(Bytes.BYTES_COMPARATOR);
+			newJournal.replay(new MutationJournal.Replay() {
+				@Override
+				public void put(byte[] tableName, byte[] row, byte[] family, byte[] qualifier, long timestamp,
+						byte[] value) {
+					byte[] key = Bytes.add(Bytes.toBytes(tableName.length), tableName, row);
+					Put put = puts.get(key);
+					if (put == null) {
+						put = new Put(row);
+					}
+					puts.put(key, getBuffer(tableName).addColumn(put, family, qualifier, timestamp, value));
+				}
+
+				@Override
+				public void delete(byte[] tableName, long id, Delete delete) {
+					getBuffer(tableName).openDelete(delete);
+					deletes.put(id, delete);
+				}
+
+				@Override
+				public void deleteColumn(byte[] tableName, long id, byte[] family, byte[] qualifier) {
+					Delete delete = deletes.get(id);
+					if (delete == null) {
+						LOG.warn("Journaled delete [" + id + "] not found, skipping column delete.");
+						return;
+					}
+					deletes.put(id, getBuffer(tableName).addDeleteColumn(delete, family, qualifier));
+				}
+			});
+			flush();
+			buffers.clear();
+			newJournal.releaseReplayed();
+			journal = newJournal;
+		} catch (IOException e) {
+			newJournal.close();
+			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			// the segments stay on disk and are replayed by the next process
+			newJournal.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the mapper of the given entity class, the mapper is built once per
+	 * class with the type converters registered at that time.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> EntityMapper<T> getMapper(Class<T> type) {
+		EntityMapper<T> mapper = (EntityMapper<T>) mappers.get(type);
+		if (mapper == null) {
+			mapper = new EntityMapper<T>(type, typeDriver);
+			EntityMapper<T> existing = (EntityMapper<T>) mappers.putIfAbsent(type, mapper);
+			if (existing != null) {
+				mapper = existing;
+			}
+		}
+		return mapper;
 	}
 
-	private Queue<Put> getPuts(byte[] tableName) {
-		Queue<Put> queue = putsMap.get(tableName);
-		if (queue == null) {
-			queue = new ConcurrentLinkedQueue<Put>();
-			putsMap.put(tableName, queue);
+	private static void checkShards(int shards) {
+		if (shards < 1 || shards > MAX_COUNTER_SHARDS) {
+			throw new IllegalArgumentException("Shards [" + shards + "] must be between 1 and ["
+					+ MAX_COUNTER_SHARDS + "].");
 		}
-		return queue;
+	}
+
+	private static byte[] shardRow(byte[] row, int shard) {
+		return Bytes.add(new byte[] { (byte) shard }, row);
+	}
+
+	private List<byte[]> getBufferedTables() {
+		return new ArrayList<byte[]>(buffers.keySet());
 	}
 
 	private void setupAutoFlushOnShutdown() {
-		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+		shutdownHook = new Thread(new Runnable() {
 			@Override
 			public void run() {
+				disableWriteBehind();
 				flush();
+				if (journal != null) {
+					journal.close();
+				}
 			}
-		}));
+		});
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
 	}
 
 	@Override
@@ -0,0 +1,462 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Holds the pending {@link Put}s, {@link Delete}s and counter increments for a
+ * single table. Increments of the same column are summed while they are
+ * pending, so each column is incremented once per flush. A put
+ * is only queued once it gets its first column, and once a put or delete has
+ * been drained it is never changed again. Callers that keep adding columns to
+ * a drained mutation are handed a new one for the same row, this allows the
+ * buffer to be drained by another thread while rows are still being built.
+ * <p>
+ * The buffer is split into stripes and each thread appends to the stripe
+ * picked by its thread id, so writer threads rarely contend on the same lock.
+ * A drain swaps out the lists of each stripe while holding that stripe's lock,
+ * so nothing added concurrently is lost. The number of pending mutations, an
+ * estimate of their heap size and the time of the first pending mutation are
+ * kept for the {@link BatchPolicy}, these are read without locking.
+ * <p>
+ * When a {@link MutationJournal} is given every change is appended to it while
+ * holding the stripe's lock, and each stripe remembers the oldest journal
+ * segment that holds one of its pending mutations, see {@link #oldestSegment()}.
+ * <p>
+ * A row delete is queued as soon as it is created but is narrowed to columns
+ * afterwards, so it stays open until the thread that created it moves on,
+ * see {@link #openDelete(Delete)}. An open delete is drained by a flush that
+ * asks for all open deletes, once it has been open for longer than the flush
+ * allows, or once the thread that owns it has died.
+ * <p>
+ * {@link WriteCallback}s are kept in the stripe of the thread that registered
+ * them and are drained with the mutations of that stripe. The open deletes of
+ * a thread are closed before it registers a callback, so the mutations a
+ * callback waits for are always drained with it.
+ *
+ * @author Aaron McCurry
+ */
+class MutationBuffer {
+
+	private static final int MUTATION_OVERHEAD = 64;
+	private static final int CELL_OVERHEAD = 48;
+	private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+	private Stripe[] stripes = new Stripe[STRIPES];
+	private AtomicInteger count = new AtomicInteger();
+	private AtomicLong heapSize = new AtomicLong();
+	private AtomicLong firstMutationTime = new AtomicLong();
+	private volatile BatchPolicy policy;
+	private byte[] tableName;
+	private MutationJournal journal;
+
+	/**
+	 * Held while a drained batch is sent, so flushes of the same table never
+	 * overlap and a flush returns only once earlier batches have been sent.
+	 */
+	final Object flushLock = new Object();
+
+	MutationBuffer(byte[] tableName, MutationJournal journal) {
+		this.tableName = tableName;
+		this.journal = journal;
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Adds a column to the given put, queueing the put if it is not already
+	 * pending.
+	 *
+	 * @return the put that now holds the column, this is a new put if the
+	 *         given put has already been drained.
+	 */
+	Put addColumn(Put put, byte[] family, byte[] qualifier, long timestamp, byte[] value) {
+		Stripe stripe = stripe();
+		synchronized (stripe) {
+			if (!stripe.pendingPuts.contains(put)) {
+				if (!put.isEmpty()) {
+					put = new Put(put.getRow());
+				}
+				stripe.puts.add(put);
+				stripe.pendingPuts.add(put);
+				added(stripe, MUTATION_OVERHEAD + put.getRow().length);
+			}
+			if (journal != null) {
+				journaled(stripe, journal.appendPut(tableName, put.getRow(), family, qualifier, timestamp, value));
+			}
+			put.add(family, qualifier, timestamp, value);
+			grown(stripe, cellSize(put.getRow(), family, qualifier, value));
+		}
+		return put;
+	}
+
+	/**
+	 * Queues a delete that the calling thread may still narrow to columns.
+	 * The delete stays open until the thread calls {@link #closeDeletes()},
+	 * or until a drain that does not hold it back any longer.
+	 */
+	void openDelete(Delete delete) {
+		Stripe stripe = stripe();
+		synchronized (stripe) {
+			addDelete(stripe, delete);
+			stripe.openDeletes.put(delete, new OpenDelete());
+		}
+	}
+
+	/**
+	 * Closes the open deletes of the calling thread, they are sent with the
+	 * next flush.
+	 */
+	void closeDeletes() {
+		Stripe stripe = stripe();
+		synchronized (stripe) {
+			closeDeletes(stripe);
+		}
+	}
+
+	/**
+	 * Narrows the given delete to a column. Only an open delete of the calling
+	 * thread is changed, otherwise a new open delete of just the column is
+	 * queued for the same row.
+	 *
+	 * @return the delete that now holds the column.
+	 */
+	Delete addDeleteColumn(Delete delete, byte[] family, byte[] qualifier) {
+		Stripe stripe = stripe();
+		synchronized (stripe) {
+			Long id = stripe.pendingDeletes.get(delete);
+			OpenDelete open = stripe.openDeletes.get(delete);
+			if (id == null || open == null || open.owner != Thread.currentThread()) {
+				closeDeletes(stripe);
+				delete = new Delete(delete.getRow());
+				delete.deleteColumn(family, qualifier);
+				addDelete(stripe, delete);
+				stripe.openDeletes.put(delete, new OpenDelete());
+				return delete;
+			}
+			if (journal != null) {
+				journaled(stripe, journal.appendDeleteColumn(tableName, id, family, qualifier));
+			}
+			delete.deleteColumn(family, qualifier);
+			grown(stripe, cellSize(delete.getRow(), family, qualifier, null));
+		}
+		return delete;
+	}
+
+	/**
+	 * Adds the amount to the pending increment of the given column.
+	 * 
+	 * @return true if the column had no pending increment yet.
+	 */
+	boolean addIncrement(byte[] row, byte[] family, byte[] qualifier, long amount) {
+		byte[] key = Bytes.add(Bytes.toBytes(row.length), row, Bytes.add(Bytes.toBytes(family.length), family,
+				qualifier));
+		Stripe stripe = stripe();
+		synchronized (stripe) {
+			Counter counter = stripe.counters.get(key);
+			boolean added = counter == null;
+			if (added) {
+				counter = new Counter(row, family, qualifier);
+				stripe.counters.put(key, counter);
+				added(stripe, MUTATION_OVERHEAD + cellSize(row, family, qualifier, null));
+			}
+			counter.amount += amount;
+			return added;
+		}
+	}
+
+	/**
+	 * Registers a callback for the mutations the calling thread has queued so
+	 * far.
+	 */
+	void addCallback(WriteCallback callback) {
+		Stripe stripe = stripe();
+		synchronized (stripe) {
+			stripe.callbacks.add(callback);
+		}
+	}
+
+	/**
+	 * Checks the pending mutations against the limits of the given policy.
+	 *
+	 * @return true if any limit has been reached.
+	 */
+	boolean isFull(BatchPolicy policy) {
+		if (count.get() >= policy.getMaxMutations() || heapSize.get() >= policy.getMaxHeapSize()) {
+			return true;
+		}
+		long linger = policy.getLingerMillis();
+		long first = firstMutationTime.get();
+		return linger >= 0 && first != 0 && System.currentTimeMillis() - first >= linger;
+	}
+
+	long heapSize() {
+		return heapSize.get();
+	}
+
+	boolean isEmpty() {
+		return count.get() == 0;
+	}
+
+	/**
+	 * @return the policy set for this table, or null if the default policy is
+	 *         used.
+	 */
+	BatchPolicy getPolicy() {
+		return policy;
+	}
+
+	void setPolicy(BatchPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * @return the oldest journal segment that holds a pending mutation, or
+	 *         {@link Long#MAX_VALUE} if there is none.
+	 */
+	long oldestSegment() {
+		long oldest = Long.MAX_VALUE;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				oldest = Math.min(oldest, stripe.oldestSegment);
+			}
+		}
+		return oldest;
+	}
+
+	/**
+	 * Removes and returns everything that is pending.
+	 *
+	 * @param maxOpenMillis
+	 *            the open deletes of live threads that have been open for less
+	 *            than this are left in the buffer, 0 drains all open deletes.
+	 */
+	Batch drain(long maxOpenMillis) {
+		long now = System.currentTimeMillis();
+		firstMutationTime.set(0);
+		List<Put> puts = new ArrayList<Put>();
+		List<Delete> deletes = new ArrayList<Delete>();
+		List<WriteCallback> callbacks = new ArrayList<WriteCallback>();
+		int queued = 0;
+		Map<byte[], Counter> counters = new TreeMap<byte[], Counter>(Bytes.BYTES_COMPARATOR);
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				List<Delete> open = new ArrayList<Delete>();
+				Map<Delete, Long> ids = stripe.pendingDeletes;
+				Map<Delete, OpenDelete> owners = stripe.openDeletes;
+				puts.addAll(stripe.puts);
+				for (Delete delete : stripe.deletes) {
+					OpenDelete owner = owners.get(delete);
+					if (owner != null && owner.owner.isAlive() && now - owner.opened < maxOpenMillis) {
+						open.add(delete);
+					} else {
+						deletes.add(delete);
+					}
+				}
+				for (Map.Entry<byte[], Counter> entry : stripe.counters.entrySet()) {
+					Counter counter = counters.get(entry.getKey());
+					if (counter == null) {
+						counters.put(entry.getKey(), entry.getValue());
+					} else {
+						counter.amount += entry.getValue().amount;
+					}
+				}
+				callbacks.addAll(stripe.callbacks);
+				queued += stripe.puts.size() + stripe.deletes.size() - open.size() + stripe.counters.size();
+				count.addAndGet(-(stripe.puts.size() + stripe.deletes.size() + stripe.counters.size()));
+				heapSize.addAndGet(-stripe.heapSize);
+				stripe.clear();
+				for (Delete delete : open) {
+					stripe.deletes.add(delete);
+					stripe.pendingDeletes.put(delete, ids.get(delete));
+					stripe.openDeletes.put(delete, owners.get(delete));
+					added(stripe, heapSize(delete));
+					if (journal != null) {
+						// columns added to the delete are journaled after it
+						journaled(stripe, ids.get(delete));
+					}
+				}
+			}
+		}
+		return new Batch(puts, deletes, new ArrayList<Counter>(counters.values()), callbacks, queued);
+	}
+
+	private void addDelete(Stripe stripe, Delete delete) {
+		long id = 0;
+		if (journal != null) {
+			id = journal.appendDelete(tableName, delete);
+			journaled(stripe, id);
+		}
+		stripe.deletes.add(delete);
+		stripe.pendingDeletes.put(delete, id);
+		added(stripe, heapSize(delete));
+	}
+
+	private void closeDeletes(Stripe stripe) {
+		Iterator<OpenDelete> owners = stripe.openDeletes.values().iterator();
+		while (owners.hasNext()) {
+			if (owners.next().owner == Thread.currentThread()) {
+				owners.remove();
+			}
+		}
+	}
+
+	private void journaled(Stripe stripe, long id) {
+		stripe.oldestSegment = Math.min(stripe.oldestSegment, id >>> 32);
+	}
+
+	private void added(Stripe stripe, long size) {
+		count.incrementAndGet();
+		firstMutationTime.compareAndSet(0, System.currentTimeMillis());
+		grown(stripe, size);
+	}
+
+	private void grown(Stripe stripe, long size) {
+		stripe.heapSize += size;
+		heapSize.addAndGet(size);
+	}
+
+	private Stripe stripe() {
+		return stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+	}
+
+	private static long heapSize(Delete delete) {
+		long size = MUTATION_OVERHEAD + delete.getRow().length;
+		for (List<KeyValue> keyValues : delete.getFamilyMap().values()) {
+			for (KeyValue keyValue : keyValues) {
+				size += CELL_OVERHEAD + keyValue.getLength();
+			}
+		}
+		return size;
+	}
+
+	private static long cellSize(byte[] row, byte[] family, byte[] qualifier, byte[] value) {
+		return CELL_OVERHEAD + row.length + family.length + qualifier.length + (value == null ? 0 : value.length);
+	}
+
+	private static int stripes(int processors) {
+		int stripes = 1;
+		while (stripes < processors) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	private static <T> Set<T> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	}
+
+	/**
+	 * The pending mutations of the threads mapped to one stripe, only accessed
+	 * while holding the stripe's lock.
+	 */
+	private static class Stripe {
+		List<Put> puts = new ArrayList<Put>();
+		Set<Put> pendingPuts = newIdentitySet();
+		List<Delete> deletes = new ArrayList<Delete>();
+		Map<Delete, Long> pendingDeletes = new IdentityHashMap<Delete, Long>();
+		Map<byte[], Counter> counters = new TreeMap<byte[], Counter>(Bytes.BYTES_COMPARATOR);
+		Map<Delete, OpenDelete> openDeletes = new IdentityHashMap<Delete, OpenDelete>();
+		List<WriteCallback> callbacks = new ArrayList<WriteCallback>();
+		long heapSize;
+		long oldestSegment = Long.MAX_VALUE;
+
+		void clear() {
+			puts = new ArrayList<Put>();
+			pendingPuts = newIdentitySet();
+			deletes = new ArrayList<Delete>();
+			pendingDeletes = new IdentityHashMap<Delete, Long>();
+			counters = new TreeMap<byte[], Counter>(Bytes.BYTES_COMPARATOR);
+			openDeletes = new IdentityHashMap<Delete, OpenDelete>();
+			callbacks = new ArrayList<WriteCallback>();
+			heapSize = 0;
+			oldestSegment = Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * The thread that may still narrow an open delete, and when the delete
+	 * was opened.
+	 */
+	private static class OpenDelete {
+		final Thread owner = Thread.currentThread();
+		final long opened = System.currentTimeMillis();
+	}
+
+	/**
+	 * The summed increments of a single column.
+	 */
+	static class Counter {
+		final byte[] row;
+		final byte[] family;
+		final byte[] qualifier;
+		long amount;
+
+		Counter(byte[] row, byte[] family, byte[] qualifier) {
+			this.row = row;
+			this.family = family;
+			this.qualifier = qualifier;
+		}
+	}
+
+	/**
+	 * The mutations removed from the buffer by a single drain.
+	 */
+	static class Batch {
+		final List<Put> puts;
+		final List<Delete> deletes;
+		final List<Counter> counters;
+		final List<WriteCallback> callbacks;
+
+		/**
+		 * The number of mutations that were queued for this batch, before
+		 * the increments of a column from different stripes were summed or
+		 * the batch was coalesced. Each of them was counted against the write
+		 * behind limit when it was queued.
+		 */
+		final int queued;
+
+		Batch(List<Put> puts, List<Delete> deletes, List<Counter> counters, List<WriteCallback> callbacks,
+				int queued) {
+			this.puts = puts;
+			this.deletes = deletes;
+			this.counters = counters;
+			this.callbacks = callbacks;
+			this.queued = queued;
+		}
+
+		int size() {
+			return puts.size() + deletes.size() + counters.size();
+		}
+	}
+}
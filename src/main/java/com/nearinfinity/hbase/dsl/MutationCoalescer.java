@@ -0,0 +1,192 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Merges the mutations of a drained batch so that each row is sent as at most
+ * one {@link Put} and one {@link Delete}. Puts are always sent before deletes,
+ * so the result of the flush does not change:
+ * <ul>
+ * <li>When a column is put more than once with the same timestamp only the
+ * last value is kept.</li>
+ * <li>Puts without a timestamp are dropped when the row, family or all
+ * versions of the column are deleted in the same batch.</li>
+ * <li>A put without a timestamp and a delete of the latest version of the same
+ * column cancel each other out.</li>
+ * </ul>
+ * Rows with deletes that carry a timestamp are left alone.
+ *
+ * @author Aaron McCurry
+ */
+class MutationCoalescer {
+
+	private static final byte DELETE = KeyValue.Type.Delete.getCode();
+	private static final byte DELETE_COLUMN = KeyValue.Type.DeleteColumn.getCode();
+	private static final byte DELETE_FAMILY = KeyValue.Type.DeleteFamily.getCode();
+
+	static MutationBuffer.Batch coalesce(MutationBuffer.Batch batch) {
+		Map<byte[], Map<KeyValue, KeyValue>> rowCells = new TreeMap<byte[], Map<KeyValue, KeyValue>>(
+				Bytes.BYTES_COMPARATOR);
+		for (Put put : batch.puts) {
+			Map<KeyValue, KeyValue> cells = rowCells.get(put.getRow());
+			if (cells == null) {
+				cells = new TreeMap<KeyValue, KeyValue>(KeyValue.COMPARATOR);
+				rowCells.put(put.getRow(), cells);
+			}
+			for (List<KeyValue> keyValues : put.getFamilyMap().values()) {
+				for (KeyValue keyValue : keyValues) {
+					cells.remove(keyValue);
+					cells.put(keyValue, keyValue);
+				}
+			}
+		}
+
+		Map<byte[], List<Delete>> rowDeletes = new TreeMap<byte[], List<Delete>>(Bytes.BYTES_COMPARATOR);
+		for (Delete delete : batch.deletes) {
+			List<Delete> deletes = rowDeletes.get(delete.getRow());
+			if (deletes == null) {
+				deletes = new ArrayList<Delete>();
+				rowDeletes.put(delete.getRow(), deletes);
+			}
+			deletes.add(delete);
+		}
+
+		List<Delete> deletes = new ArrayList<Delete>();
+		for (Map.Entry<byte[], List<Delete>> entry : rowDeletes.entrySet()) {
+			if (!isLatest(entry.getValue())) {
+				deletes.addAll(entry.getValue());
+				continue;
+			}
+			Delete delete = merge(entry.getKey(), entry.getValue(), rowCells.get(entry.getKey()));
+			if (delete != null) {
+				deletes.add(delete);
+			}
+		}
+
+		List<Put> puts = new ArrayList<Put>();
+		for (Map.Entry<byte[], Map<KeyValue, KeyValue>> entry : rowCells.entrySet()) {
+			if (entry.getValue().isEmpty()) {
+				continue;
+			}
+			Put put = new Put(entry.getKey());
+			for (KeyValue keyValue : entry.getValue().keySet()) {
+				put.add(keyValue.getFamily(), keyValue.getQualifier(), keyValue.getTimestamp(), keyValue.getValue());
+			}
+			puts.add(put);
+		}
+		return new MutationBuffer.Batch(puts, deletes, batch.counters, batch.callbacks, batch.queued);
+	}
+
+	/**
+	 * Merges the deletes of a single row, removing the puts they supersede.
+	 *
+	 * @return the merged delete, or null if nothing is left to delete.
+	 */
+	private static Delete merge(byte[] row, List<Delete> deletes, Map<KeyValue, KeyValue> cells) {
+		List<KeyValue> markers = new ArrayList<KeyValue>();
+		for (Delete delete : deletes) {
+			if (delete.isEmpty()) {
+				removeLatest(cells, null, null);
+				return new Delete(row);
+			}
+			for (List<KeyValue> keyValues : delete.getFamilyMap().values()) {
+				markers.addAll(keyValues);
+			}
+		}
+
+		Delete merged = new Delete(row);
+		Map<KeyValue, KeyValue> seen = new TreeMap<KeyValue, KeyValue>(KeyValue.COMPARATOR);
+		for (KeyValue marker : markers) {
+			byte type = marker.getType();
+			if (type == DELETE) {
+				if (!removeLatest(cells, marker.getFamily(), marker.getQualifier())) {
+					merged.deleteColumn(marker.getFamily(), marker.getQualifier());
+				}
+			} else if (seen.put(marker, marker) == null) {
+				if (type == DELETE_FAMILY) {
+					removeLatest(cells, marker.getFamily(), null);
+					merged.deleteFamily(marker.getFamily());
+				} else if (type == DELETE_COLUMN) {
+					removeLatest(cells, marker.getFamily(), marker.getQualifier());
+					merged.deleteColumns(marker.getFamily(), marker.getQualifier());
+				}
+			}
+		}
+		if (merged.isEmpty()) {
+			return null;
+		}
+		return merged;
+	}
+
+	/**
+	 * Removes the cells without a timestamp that match the given family and
+	 * qualifier, a null family or qualifier matches everything.
+	 *
+	 * @return true if a cell was removed.
+	 */
+	private static boolean removeLatest(Map<KeyValue, KeyValue> cells, byte[] family, byte[] qualifier) {
+		if (cells == null) {
+			return false;
+		}
+		boolean removed = false;
+		Iterator<KeyValue> iterator = cells.keySet().iterator();
+		while (iterator.hasNext()) {
+			KeyValue cell = iterator.next();
+			if (cell.getTimestamp() != HConstants.LATEST_TIMESTAMP) {
+				continue;
+			}
+			if (family != null && !Bytes.equals(family, cell.getFamily())) {
+				continue;
+			}
+			if (qualifier != null && !Bytes.equals(qualifier, cell.getQualifier())) {
+				continue;
+			}
+			iterator.remove();
+			removed = true;
+		}
+		return removed;
+	}
+
+	private static boolean isLatest(List<Delete> deletes) {
+		for (Delete delete : deletes) {
+			if (delete.getTimeStamp() != HConstants.LATEST_TIMESTAMP) {
+				return false;
+			}
+			for (List<KeyValue> keyValues : delete.getFamilyMap().values()) {
+				for (KeyValue keyValue : keyValues) {
+					if (keyValue.getTimestamp() != HConstants.LATEST_TIMESTAMP) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,448 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Delete;
+
+/**
+ * A local journal of the mutations that are pending in the write buffers.
+ * Every column that is saved and every delete is appended to a memory mapped
+ * segment file before the call that made it returns, so the pending
+ * mutations survive the process being killed. Once a segment is full the
+ * next one is started.
+ * <p>
+ * A segment is deleted once none of its mutations is pending or being
+ * flushed any more, see {@link #release(long)}. A flush that fails pins the
+ * segments its mutations may be in, they are kept until they are replayed by
+ * the next process. The segments left over by a previous process are
+ * replayed when the journal is opened, replay is at least once so a mutation
+ * that was flushed just before the process died may be sent again. Counter
+ * increments are not journaled for that reason, an increment sent twice would
+ * leave the counter wrong.
+ * <p>
+ * Records are written as a length followed by the record. Only the space of
+ * a record is reserved under the lock of the journal, writers on different
+ * threads fill their records at the same time. A reserved record carries its
+ * negated length until it is complete, so replay skips records that were cut
+ * off without losing the ones after them.
+ * 
+ * @author Aaron McCurry
+ */
+class MutationJournal {
+
+	private static final Log LOG = LogFactory.getLog(MutationJournal.class);
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final byte DELETE_COLUMN = 3;
+
+	private File dir;
+	private int segmentSize;
+	private RandomAccessFile lockFile;
+	private FileLock lock;
+	private List<Segment> segments = new ArrayList<Segment>();
+	private List<Flush> flushes = new ArrayList<Flush>();
+	private Segment current;
+	private long nextSegment;
+	private boolean closed;
+
+	MutationJournal(File dir, int segmentSize) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create journal directory [" + dir + "]");
+		}
+		lockFile = new RandomAccessFile(new File(dir, "journal.lock"), "rw");
+		try {
+			lock = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			lockFile.close();
+			throw new IOException("Journal directory [" + dir + "] is in use by another object in this process.");
+		} catch (IOException e) {
+			lockFile.close();
+			throw e;
+		}
+		if (lock == null) {
+			lockFile.close();
+			throw new IOException("Journal directory [" + dir + "] is in use by another process.");
+		}
+		File[] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		for (File file : files) {
+			Segment segment = new Segment(file, parseNumber(file), null);
+			segments.add(segment);
+			nextSegment = segment.number + 1;
+		}
+	}
+
+	/**
+	 * Receives the records of the segments left over by a previous process.
+	 */
+	interface Replay {
+		void put(byte[] tableName, byte[] row, byte[] family, byte[] qualifier, long timestamp, byte[] value);
+
+		void delete(byte[] tableName, long id, Delete delete);
+
+		void deleteColumn(byte[] tableName, long id, byte[] family, byte[] qualifier);
+	}
+
+	/**
+	 * Replays all existing segments in the order they were written, this has
+	 * to be called before anything is appended.
+	 */
+	synchronized void replay(Replay replay) throws IOException {
+		for (Segment segment : segments) {
+			LOG.info("Replaying journal segment [" + segment.file + "]");
+			RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+			try {
+				MappedByteBuffer in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+				while (in.remaining() >= 4) {
+					int position = in.position();
+					int length = in.getInt();
+					if (length == 0 || Math.abs(length) > in.remaining()) {
+						break;
+					}
+					if (length > 0) {
+						try {
+							replay(replay, segment.number, position, in);
+						} catch (BufferUnderflowException e) {
+							throw new IOException("Corrupt record at [" + position + "] in [" + segment.file + "]");
+						}
+					}
+					in.position(position + 4 + Math.abs(length));
+				}
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * Deletes all the segments that have been replayed.
+	 */
+	synchronized void releaseReplayed() {
+		Iterator<Segment> iterator = segments.iterator();
+		while (iterator.hasNext()) {
+			Segment segment = iterator.next();
+			if (segment != current) {
+				iterator.remove();
+				delete(segment);
+			}
+		}
+	}
+
+	/**
+	 * @return the id of the put, the segment it is in is the upper half.
+	 */
+	long appendPut(byte[] tableName, byte[] row, byte[] family, byte[] qualifier, long timestamp, byte[] value) {
+		int length = 1 + size(tableName) + size(row) + size(family) + size(qualifier) + 8 + size(value);
+		Record record = reserve(length);
+		ByteBuffer out = record.out;
+		out.put(PUT);
+		write(out, tableName);
+		write(out, row);
+		write(out, family);
+		write(out, qualifier);
+		out.putLong(timestamp);
+		write(out, value);
+		return commit(record, length);
+	}
+
+	/**
+	 * @return the id of the delete, used to narrow the delete to columns.
+	 */
+	long appendDelete(byte[] tableName, Delete delete) {
+		byte[] bytes = toBytes(delete);
+		int length = 1 + size(tableName) + size(bytes);
+		Record record = reserve(length);
+		record.out.put(DELETE);
+		write(record.out, tableName);
+		write(record.out, bytes);
+		return commit(record, length);
+	}
+
+	long appendDeleteColumn(byte[] tableName, long id, byte[] family, byte[] qualifier) {
+		int length = 1 + size(tableName) + 8 + size(family) + size(qualifier);
+		Record record = reserve(length);
+		ByteBuffer out = record.out;
+		out.put(DELETE_COLUMN);
+		write(out, tableName);
+		out.putLong(id);
+		write(out, family);
+		write(out, qualifier);
+		return commit(record, length);
+	}
+
+	/**
+	 * @return the number of the segment new records are appended to.
+	 */
+	synchronized long currentSegment() {
+		return current == null ? nextSegment : current.number;
+	}
+
+	/**
+	 * Registers a flush of mutations that were journaled in the given segment
+	 * or later, no segment from there on is released until the flush ends.
+	 */
+	synchronized Flush startFlush(long segment) {
+		Flush flush = new Flush(segment);
+		flushes.add(flush);
+		return flush;
+	}
+
+	/**
+	 * Ends a flush. When it failed its mutations have been dropped from the
+	 * write buffers, so all segments they may be in are pinned until the
+	 * journal is replayed, and new records go to a new segment.
+	 */
+	synchronized void endFlush(Flush flush, boolean failed) {
+		flushes.remove(flush);
+		if (!failed) {
+			return;
+		}
+		LOG.warn("A flush failed, keeping the journal segments from [" + flush.segment + "] until they are replayed.");
+		for (Segment segment : segments) {
+			if (segment.number >= flush.segment) {
+				segment.pinned = true;
+			}
+		}
+		if (current != null && current.pinned) {
+			current.buffer.force();
+			current = null;
+		}
+	}
+
+	/**
+	 * Deletes the segments before the given one, except for pinned segments
+	 * and the segments of flushes that have not ended.
+	 * 
+	 * @param oldestPending
+	 *            the oldest segment that holds a mutation that is still
+	 *            pending, or the current segment if there is none.
+	 */
+	synchronized void release(long oldestPending) {
+		long limit = oldestPending;
+		for (Flush flush : flushes) {
+			limit = Math.min(limit, flush.segment);
+		}
+		Iterator<Segment> iterator = segments.iterator();
+		while (iterator.hasNext()) {
+			Segment segment = iterator.next();
+			if (segment.number >= limit) {
+				break;
+			}
+			if (!segment.pinned && segment != current) {
+				iterator.remove();
+				delete(segment);
+			}
+		}
+	}
+
+	synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (current != null) {
+			current.buffer.force();
+		}
+		try {
+			lock.release();
+			lockFile.close();
+		} catch (IOException e) {
+			LOG.error("Could not release journal lock.", e);
+		}
+	}
+
+	/**
+	 * Reserves the space of a record, the record can then be written without
+	 * holding the lock of the journal.
+	 */
+	private synchronized Record reserve(int length) {
+		if (closed) {
+			throw new IllegalStateException("Journal [" + dir + "] is closed.");
+		}
+		if (current == null || current.buffer.capacity() - current.position < 4 + length) {
+			roll(Math.max(segmentSize, 4 + length));
+		}
+		int position = current.position;
+		current.position += 4 + length;
+		current.buffer.putInt(position, -length);
+		ByteBuffer out = current.buffer.duplicate();
+		out.position(position + 4);
+		return new Record(current, position, out);
+	}
+
+	/**
+	 * Writes the length of the record, which makes it visible to replay.
+	 */
+	private long commit(Record record, int length) {
+		record.segment.buffer.putInt(record.position, length);
+		return (record.segment.number << 32) | record.position;
+	}
+
+	private void roll(int size) {
+		long number = nextSegment++;
+		File file = new File(dir, SEGMENT_PREFIX + String.format("%019d", number) + SEGMENT_SUFFIX);
+		MappedByteBuffer buffer;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(size);
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		current = new Segment(file, number, buffer);
+		segments.add(current);
+	}
+
+	private void delete(Segment segment) {
+		if (!segment.file.delete()) {
+			LOG.error("Could not delete journal segment [" + segment.file + "]");
+		}
+	}
+
+	private static void write(ByteBuffer out, byte[] bytes) {
+		if (bytes == null) {
+			out.putInt(-1);
+		} else {
+			out.putInt(bytes.length);
+			out.put(bytes);
+		}
+	}
+
+	private static void replay(Replay replay, long segment, int position, MappedByteBuffer in) throws IOException {
+		byte type = in.get();
+		byte[] tableName = read(in);
+		switch (type) {
+		case PUT:
+			replay.put(tableName, read(in), read(in), read(in), in.getLong(), read(in));
+			break;
+		case DELETE:
+			Delete delete = new Delete();
+			delete.readFields(new DataInputStream(new ByteArrayInputStream(read(in))));
+			replay.delete(tableName, (segment << 32) | position, delete);
+			break;
+		case DELETE_COLUMN:
+			replay.deleteColumn(tableName, in.getLong(), read(in), read(in));
+			break;
+		default:
+			throw new IOException("Unknown record type [" + type + "] at [" + position + "]");
+		}
+	}
+
+	private static byte[] read(MappedByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return bytes;
+	}
+
+	private static int size(byte[] bytes) {
+		return 4 + (bytes == null ? 0 : bytes.length);
+	}
+
+	private static byte[] toBytes(Delete delete) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			delete.write(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static long parseNumber(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static class Segment {
+		final File file;
+		final long number;
+		final MappedByteBuffer buffer;
+		int position;
+		boolean pinned;
+
+		Segment(File file, long number, MappedByteBuffer buffer) {
+			this.file = file;
+			this.number = number;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * The space reserved for a record in a segment.
+	 */
+	private static class Record {
+		final Segment segment;
+		final int position;
+		final ByteBuffer out;
+
+		Record(Segment segment, int position, ByteBuffer out) {
+			this.segment = segment;
+			this.position = position;
+			this.out = out;
+		}
+	}
+
+	/**
+	 * A flush in progress, see {@link MutationJournal#startFlush(long)}.
+	 */
+	static class Flush {
+		final long segment;
+
+		Flush(long segment) {
+			this.segment = segment;
+		}
+	}
+}
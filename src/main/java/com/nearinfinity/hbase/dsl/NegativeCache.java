@@ -0,0 +1,207 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * Remembers the rows of a single table that were recently found missing, so
+ * repeated lookups of ids that do not exist can be answered without a round
+ * trip. Rows are kept as 64 bit fingerprints of the row id and the fetched
+ * families and columns, in two generations: new misses go into the current
+ * generation, which becomes the previous generation after half the time to
+ * live, or once it holds half the max entries. A generation is dropped once
+ * it was started the time to live ago, so a miss is forgotten after at most
+ * the time to live. Unlike a Bloom filter a fingerprint can be
+ * removed again, so a write only forgets the rows it touches.
+ * <p>
+ * Like the {@link RowCache} a fetch remembers the generation of the cache
+ * before it goes to the table, and its miss is dropped if a row was written
+ * in the meantime.
+ * 
+ * @author Aaron McCurry
+ */
+class NegativeCache implements ResultCache {
+
+	private static final int ENTRY_SIZE = 48;
+	private static final int MAX_PROJECTIONS = 64;
+	private long ttlMillis;
+	private int maxEntries;
+	private Set<Long> current = new HashSet<Long>();
+	private Set<Long> previous = new HashSet<Long>();
+	private long currentStart = now();
+	private long previousStart = currentStart;
+	private Set<ByteBuffer> projections = new HashSet<ByteBuffer>();
+	private long generation;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+	private long invalidations;
+
+	NegativeCache(long ttlMillis, int maxEntries) {
+		if (ttlMillis < 1) {
+			throw new IllegalArgumentException("Time to live [" + ttlMillis + " ms] must be at least 1 ms.");
+		}
+		if (maxEntries < 2) {
+			throw new IllegalArgumentException("Max entries [" + maxEntries + "] must be at least 2.");
+		}
+		this.ttlMillis = ttlMillis;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @return an empty result if the row was recently found missing, otherwise
+	 *         null.
+	 */
+	@Override
+	public synchronized Result get(byte[] row, ByteBuffer projection) {
+		rotate();
+		Long fingerprint = fingerprint(row, projection);
+		if (current.contains(fingerprint) || previous.contains(fingerprint)) {
+			hits++;
+			return new Result(new KeyValue[0]);
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Remembers the row as missing if the result is empty.
+	 */
+	@Override
+	public synchronized void put(byte[] row, ByteBuffer projection, Result result, long generation) {
+		if (generation != this.generation || (result != null && !result.isEmpty())) {
+			return;
+		}
+		rotate();
+		if (current.size() >= maxEntries / 2) {
+			evictions += previous.size();
+			previous = current;
+			previousStart = currentStart;
+			current = new HashSet<Long>();
+			currentStart = now();
+		}
+		if (projections.size() < MAX_PROJECTIONS) {
+			projections.add(projection);
+		}
+		current.add(fingerprint(row, projection));
+	}
+
+	/**
+	 * Forgets the given row, as it may exist now.
+	 */
+	@Override
+	public synchronized void invalidate(byte[] row) {
+		generation++;
+		if (current.isEmpty() && previous.isEmpty()) {
+			return;
+		}
+		if (projections.size() >= MAX_PROJECTIONS) {
+			// too many projections to remove one by one
+			invalidations += current.size() + previous.size();
+			current.clear();
+			previous.clear();
+			projections.clear();
+			return;
+		}
+		for (ByteBuffer projection : projections) {
+			Long fingerprint = fingerprint(row, projection);
+			if (current.remove(fingerprint) | previous.remove(fingerprint)) {
+				invalidations++;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		generation++;
+		invalidations += current.size() + previous.size();
+		current.clear();
+		previous.clear();
+		projections.clear();
+	}
+
+	@Override
+	public synchronized long generation() {
+		return generation;
+	}
+
+	@Override
+	public synchronized CacheStats getStats() {
+		int rows = current.size() + previous.size();
+		return new CacheStats(hits, misses, evictions, expirations, invalidations, rows, (long) rows * ENTRY_SIZE);
+	}
+
+	/**
+	 * Drops the generations that were started the time to live ago, and
+	 * starts a new current generation once the current one is half that old.
+	 */
+	private void rotate() {
+		long now = now();
+		if (!previous.isEmpty() && now - previousStart >= ttlMillis) {
+			expirations += previous.size();
+			previous = new HashSet<Long>();
+		}
+		if (now - currentStart >= ttlMillis) {
+			expirations += current.size();
+			current = new HashSet<Long>();
+			currentStart = now;
+		} else if (now - currentStart >= ttlMillis / 2) {
+			expirations += previous.size();
+			previous = current;
+			previousStart = currentStart;
+			current = new HashSet<Long>();
+			currentStart = now;
+		}
+	}
+
+	/**
+	 * The clock of the cache, tests replace it.
+	 */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of the row and projection, with the final mix of
+	 * MurmurHash3 to spread the bits.
+	 */
+	private static Long fingerprint(byte[] row, ByteBuffer projection) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : row) {
+			hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+		}
+		hash = (hash ^ row.length) * 0x100000001b3L;
+		for (int i = projection.position(); i < projection.limit(); i++) {
+			hash = (hash ^ (projection.get(i) & 0xff)) * 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,207 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+
+/**
+ * The results of a scan that is split into pieces which are scanned
+ * concurrently. Each piece is read on a pool thread into a bounded queue and
+ * the results are handed out from the queues on the calling thread:
+ * <ul>
+ * <li>Ordered, every piece has its own queue and the queues are drained one
+ * after another, so the rows come out in the order of the pieces.</li>
+ * <li>Unordered, all pieces share a single queue and the rows come out in the
+ * order they were read.</li>
+ * </ul>
+ * The pieces are started in order, so the piece being drained is always
+ * running and a full queue of a later piece can not stall the scan.
+ * 
+ * @author Aaron McCurry
+ */
+class ParallelResults implements Scanner.Results {
+
+	private static final int QUEUE_ROWS = 1000;
+	private static final long PUT_WAIT_MILLIS = 100;
+	private static final Object END = new Object();
+
+	private List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+	private ExecutorService executor;
+	private int pieces;
+	private int ended;
+	private int current;
+	private Result next;
+	private volatile boolean closed;
+
+	ParallelResults(HBase<?, ?> hBase, byte[] tableName, List<Scan> scans, long targetBytesPerRpc, int threads,
+			boolean ordered) {
+		this.pieces = scans.size();
+		this.executor = Executors.newFixedThreadPool(Math.min(threads, pieces), new DaemonThreadFactory(
+				"hbase-dsl-scan"));
+		BlockingQueue<Object> shared = ordered ? null : new LinkedBlockingQueue<Object>(QUEUE_ROWS);
+		for (Scan scan : scans) {
+			BlockingQueue<Object> queue = ordered ? new LinkedBlockingQueue<Object>(QUEUE_ROWS) : shared;
+			queues.add(queue);
+			executor.execute(new Piece(hBase, tableName, scan, targetBytesPerRpc, queue));
+		}
+		executor.shutdown();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next != null) {
+			return true;
+		}
+		while (!closed && ended < pieces) {
+			Object o = take();
+			if (o instanceof Result) {
+				next = (Result) o;
+				return true;
+			}
+			if (o instanceof Throwable) {
+				close();
+				Throwable t = (Throwable) o;
+				throw t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
+			}
+			ended++;
+			if (current < queues.size() - 1) {
+				current++;
+			}
+		}
+		close();
+		return false;
+	}
+
+	@Override
+	public Result next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Result result = next;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new RuntimeException("read only");
+	}
+
+	/**
+	 * Stops the pieces that are still running, each gives its table handle
+	 * back once it notices.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		executor.shutdownNow();
+	}
+
+	private Object take() {
+		BlockingQueue<Object> queue = queues.get(current);
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			close();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Reads one piece of the scan into its queue, followed by {@link #END}
+	 * or the failure of the piece.
+	 */
+	private class Piece implements Runnable {
+
+		private HBase<?, ?> hBase;
+		private byte[] tableName;
+		private Scan scan;
+		private long targetBytesPerRpc;
+		private BlockingQueue<Object> queue;
+
+		Piece(HBase<?, ?> hBase, byte[] tableName, Scan scan, long targetBytesPerRpc, BlockingQueue<Object> queue) {
+			this.hBase = hBase;
+			this.tableName = tableName;
+			this.scan = scan;
+			this.targetBytesPerRpc = targetBytesPerRpc;
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			Object end = END;
+			try {
+				Scanner.Results results = Scanner.open(hBase, tableName, scan, targetBytesPerRpc);
+				try {
+					while (results.hasNext()) {
+						if (!put(results.next())) {
+							return;
+						}
+					}
+				} finally {
+					results.close();
+				}
+			} catch (IOException e) {
+				end = e;
+			} catch (RuntimeException e) {
+				end = e;
+			} catch (Error e) {
+				end = e;
+				throw e;
+			} finally {
+				put(end);
+			}
+		}
+
+		/**
+		 * Waits for room in the queue until the results are closed. The close
+		 * interrupts this thread, but the client may swallow the interrupt, so
+		 * the wait is bounded and the closed flag is checked in between.
+		 * 
+		 * @return false if the results have been closed.
+		 */
+		private boolean put(Object o) {
+			try {
+				while (!closed) {
+					if (queue.offer(o, PUT_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+				}
+			} catch (InterruptedException e) {
+				// closed while waiting for the consumer
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * Reads the results of a scan ahead of the consumer. A background thread
+ * fills batches of results into a bounded queue, so fetching the next batch
+ * overlaps with processing the current one. Once the queue is full the
+ * thread waits for the consumer, until the results are closed.
+ * 
+ * @author Aaron McCurry
+ */
+class PrefetchResults implements Scanner.Results {
+
+	private static final long PUT_WAIT_MILLIS = 100;
+	private static final Object END = new Object();
+	private static final DaemonThreadFactory THREAD_FACTORY = new DaemonThreadFactory("hbase-dsl-prefetch");
+
+	private Scanner.Results results;
+	private int batchRows;
+	private BlockingQueue<Object> queue;
+	private Iterator<Result> batch;
+	private Thread thread;
+	private boolean done;
+	private volatile boolean closed;
+
+	PrefetchResults(Scanner.Results results, int batches, int batchRows) {
+		this.results = results;
+		this.batchRows = batchRows;
+		this.queue = new ArrayBlockingQueue<Object>(batches);
+		this.thread = THREAD_FACTORY.newThread(new Runnable() {
+			@Override
+			public void run() {
+				fill();
+			}
+		});
+		thread.start();
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (closed) {
+			return false;
+		}
+		while (batch == null || !batch.hasNext()) {
+			if (done) {
+				return false;
+			}
+			Object o = take();
+			if (o == END) {
+				done = true;
+				return false;
+			}
+			if (o instanceof Throwable) {
+				close();
+				Throwable t = (Throwable) o;
+				throw t instanceof RuntimeException ? (RuntimeException) t : new RuntimeException(t);
+			}
+			@SuppressWarnings("unchecked")
+			List<Result> next = (List<Result>) o;
+			batch = next.iterator();
+		}
+		return true;
+	}
+
+	@Override
+	public Result next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return batch.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new RuntimeException("read only");
+	}
+
+	/**
+	 * Stops the background thread, which closes the underlying results once
+	 * it notices.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		thread.interrupt();
+	}
+
+	private Object take() {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			close();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Reads the batches into the queue, always followed by {@link #END} or
+	 * the failure of the scan so the consumer never waits forever.
+	 */
+	private void fill() {
+		Object end = END;
+		try {
+			while (!closed && results.hasNext()) {
+				List<Result> next = new ArrayList<Result>(batchRows);
+				while (next.size() < batchRows && results.hasNext()) {
+					next.add(results.next());
+				}
+				if (!put(next)) {
+					return;
+				}
+			}
+		} catch (RuntimeException e) {
+			end = e;
+		} catch (Error e) {
+			end = e;
+			throw e;
+		} finally {
+			try {
+				results.close();
+			} finally {
+				put(end);
+			}
+		}
+	}
+
+	/**
+	 * Waits for room in the queue until the results are closed, the wait is
+	 * bounded in case the scan swallowed the interrupt of the close.
+	 * 
+	 * @return false if the results have been closed.
+	 */
+	private boolean put(Object o) {
+		try {
+			while (!closed) {
+				if (queue.offer(o, PUT_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed while waiting for the consumer
+		}
+		return false;
+	}
+}
@@ -0,0 +1,197 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A fetch whose families and columns are fixed and already encoded, built
+ * once with {@link FetchRow#prepare()} and then run for any number of ids.
+ * A prepared fetch is immutable and can be shared by many threads. Each run
+ * first flushes the pending changes of the table, so it sees the writes made
+ * before it through the same {@link HBase} object.
+ * 
+ * @author Aaron McCurry
+ * 
+ * @param <ROW_ID_TYPE>
+ */
+public class PreparedFetch<ROW_ID_TYPE> {
+
+	private static final Log LOG = LogFactory.getLog(PreparedFetch.class);
+	private final HBase<? extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> hBase;
+	private final byte[] tableName;
+	private final byte[][] families;
+	private final byte[][][] qualifiers;
+	private final boolean flushPending;
+
+	PreparedFetch(HBase<? extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> hBase, byte[] tableName,
+			Map<byte[], NavigableSet<byte[]>> familyMap, boolean flushPending) {
+		this.hBase = hBase;
+		this.tableName = tableName.clone();
+		this.flushPending = flushPending;
+		this.families = new byte[familyMap.size()][];
+		this.qualifiers = new byte[familyMap.size()][][];
+		int i = 0;
+		for (Map.Entry<byte[], NavigableSet<byte[]>> entry : familyMap.entrySet()) {
+			families[i] = entry.getKey().clone();
+			if (entry.getValue() != null) {
+				qualifiers[i] = new byte[entry.getValue().size()][];
+				int j = 0;
+				for (byte[] qualifier : entry.getValue()) {
+					qualifiers[i][j++] = qualifier.clone();
+				}
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * Fetches the row of the given id.
+	 * 
+	 * @param id
+	 *            the id of the row.
+	 * @return the row, or null if it does not exist.
+	 */
+	public Row<ROW_ID_TYPE> row(ROW_ID_TYPE id) {
+		flushPending();
+		Get get = newGet(id);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Fetching row with id [" + Bytes.toString(get.getRow()) + "]");
+		}
+		return toRow(hBase.getResult(tableName, get));
+	}
+
+	/**
+	 * Fetches the rows of all the given ids. The gets are grouped by region
+	 * and run concurrently.
+	 * 
+	 * @param ids
+	 *            the {@link Iterable} of the id(s).
+	 * @return the rows found, in the order of the ids, and the ids of the
+	 *         rows that do not exist.
+	 */
+	public FetchedRows<ROW_ID_TYPE> rows(Iterable<ROW_ID_TYPE> ids) {
+		flushPending();
+		List<ROW_ID_TYPE> idList = new ArrayList<ROW_ID_TYPE>();
+		List<Get> gets = new ArrayList<Get>();
+		for (ROW_ID_TYPE id : ids) {
+			idList.add(id);
+			gets.add(newGet(id));
+		}
+		LOG.debug("Fetching [" + gets.size() + "] rows");
+		List<Result> results = hBase.getResults(tableName, gets);
+		List<Row<ROW_ID_TYPE>> rows = new ArrayList<Row<ROW_ID_TYPE>>();
+		List<ROW_ID_TYPE> missingIds = new ArrayList<ROW_ID_TYPE>();
+		for (int i = 0; i < results.size(); i++) {
+			Row<ROW_ID_TYPE> row = toRow(results.get(i));
+			if (row == null) {
+				missingIds.add(idList.get(i));
+			} else {
+				rows.add(row);
+			}
+		}
+		return new FetchedRows<ROW_ID_TYPE>(rows, missingIds);
+	}
+
+	/**
+	 * Fetches the row of the given id on the async executor.
+	 * 
+	 * @param id
+	 *            the id of the row.
+	 * @return a future of the row, the row is null if it does not exist.
+	 */
+	public Future<Row<ROW_ID_TYPE>> rowAsync(ROW_ID_TYPE id) {
+		return rowAsync(id, null);
+	}
+
+	/**
+	 * Fetches the row of the given id on the async executor.
+	 * 
+	 * @param id
+	 *            the id of the row.
+	 * @param callback
+	 *            notified with the row, or null if it does not exist.
+	 * @return a future of the row.
+	 */
+	public Future<Row<ROW_ID_TYPE>> rowAsync(final ROW_ID_TYPE id, AsyncCallback<Row<ROW_ID_TYPE>> callback) {
+		return hBase.submit(new Callable<Row<ROW_ID_TYPE>>() {
+			@Override
+			public Row<ROW_ID_TYPE> call() {
+				return row(id);
+			}
+		}, callback);
+	}
+
+	/**
+	 * Fetches the rows of all the given ids on the async executor, see
+	 * {@link #rows(Iterable)}.
+	 */
+	public Future<FetchedRows<ROW_ID_TYPE>> rowsAsync(Iterable<ROW_ID_TYPE> ids) {
+		return rowsAsync(ids, null);
+	}
+
+	public Future<FetchedRows<ROW_ID_TYPE>> rowsAsync(final Iterable<ROW_ID_TYPE> ids,
+			AsyncCallback<FetchedRows<ROW_ID_TYPE>> callback) {
+		return hBase.submit(new Callable<FetchedRows<ROW_ID_TYPE>>() {
+			@Override
+			public FetchedRows<ROW_ID_TYPE> call() {
+				return rows(ids);
+			}
+		}, callback);
+	}
+
+	private void flushPending() {
+		if (flushPending) {
+			hBase.flushPending(tableName);
+		}
+	}
+
+	private Get newGet(ROW_ID_TYPE id) {
+		Get get = new Get(hBase.toBytes(id));
+		for (int i = 0; i < families.length; i++) {
+			if (qualifiers[i] == null) {
+				get.addFamily(families[i]);
+			} else {
+				for (byte[] qualifier : qualifiers[i]) {
+					get.addColumn(families[i], qualifier);
+				}
+			}
+		}
+		return get;
+	}
+
+	private Row<ROW_ID_TYPE> toRow(Result result) {
+		if (result == null || result.getRow() == null) {
+			return null;
+		}
+		return new ResultRow<ROW_ID_TYPE>(hBase, result);
+	}
+
+}
@@ -0,0 +1,59 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * A client side cache of fetched rows that is kept in step with the writes
+ * made through the same {@link HBase} object.
+ * 
+ * @author Aaron McCurry
+ */
+interface ResultCache {
+
+	/**
+	 * @return the cached result, or null if the row has to be fetched.
+	 */
+	Result get(byte[] row, ByteBuffer projection);
+
+	/**
+	 * Caches a fetched result, unless a row has been invalidated since the
+	 * given generation.
+	 */
+	void put(byte[] row, ByteBuffer projection, Result result, long generation);
+
+	/**
+	 * Removes every cached result of the given row.
+	 */
+	void invalidate(byte[] row);
+
+	void clear();
+
+	/**
+	 * @return the current generation, which changes whenever a row is
+	 *         invalidated.
+	 */
+	long generation();
+
+	CacheStats getStats();
+
+}
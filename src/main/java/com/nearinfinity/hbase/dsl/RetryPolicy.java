@@ -0,0 +1,118 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The retry policy decides how often the mutations of a flush that failed are
+ * sent again. Only the mutations that actually failed are retried, and the
+ * wait between attempts grows exponentially up to the max backoff. Each wait
+ * is randomized between half and all of its nominal length so clients that
+ * failed together do not retry together.
+ * 
+ * @author Aaron McCurry
+ */
+public class RetryPolicy {
+
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final long DEFAULT_BACKOFF_MILLIS = 100;
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10000;
+
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+	private volatile long backoffMillis = DEFAULT_BACKOFF_MILLIS;
+	private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+	/**
+	 * Sets the number of times failed mutations are retried before they are
+	 * given up on.
+	 * 
+	 * @param maxRetries
+	 *            the max number of retries, 0 disables retrying.
+	 * @return this.
+	 */
+	public RetryPolicy maxRetries(int maxRetries) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("Max retries [" + maxRetries + "] must not be negative.");
+		}
+		this.maxRetries = maxRetries;
+		return this;
+	}
+
+	/**
+	 * Sets the wait before the first retry, every following retry waits twice
+	 * as long as the one before.
+	 * 
+	 * @param backoff
+	 *            the initial backoff.
+	 * @param unit
+	 *            the unit of the backoff.
+	 * @return this.
+	 */
+	public RetryPolicy backoff(long backoff, TimeUnit unit) {
+		this.backoffMillis = unit.toMillis(backoff);
+		return this;
+	}
+
+	/**
+	 * Sets the longest wait between two retries.
+	 * 
+	 * @param maxBackoff
+	 *            the max backoff.
+	 * @param unit
+	 *            the unit of the max backoff.
+	 * @return this.
+	 */
+	public RetryPolicy maxBackoff(long maxBackoff, TimeUnit unit) {
+		this.maxBackoffMillis = unit.toMillis(maxBackoff);
+		return this;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public long getBackoffMillis() {
+		return backoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+
+	/**
+	 * @param retry
+	 *            the retry about to be made, starting at 0.
+	 * @return the randomized time in milliseconds to wait before the retry.
+	 */
+	long backoffMillis(int retry, Random random) {
+		long backoff = Math.min(backoffMillis, maxBackoffMillis);
+		for (int i = 0; i < retry && backoff < maxBackoffMillis; i++) {
+			backoff = Math.min(backoff * 2, maxBackoffMillis);
+		}
+		long half = backoff / 2;
+		return half + (long) (random.nextDouble() * (backoff - half));
+	}
+
+	@Override
+	public String toString() {
+		return "maxRetries [" + maxRetries + "] backoffMillis [" + backoffMillis + "] maxBackoffMillis ["
+				+ maxBackoffMillis + "]";
+	}
+}
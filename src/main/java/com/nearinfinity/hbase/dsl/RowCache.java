@@ -0,0 +1,281 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.io.TimeRange;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Caches the fetched rows of a single table, keyed by row id and the families
+ * and columns that were fetched. The cache is bounded by the estimated size
+ * of the cached results and evicts with a segmented LRU: a row enters the
+ * probation segment and is promoted to the protected segment on its second
+ * hit, so rows read only once never push out rows that are read over and
+ * over. Every cached result expires once its time to live has passed.
+ * <p>
+ * Writes invalidate the rows they touch. A fetch remembers the generation of
+ * the cache before it goes to the table and its result is dropped if anything
+ * was invalidated in the meantime, so a slow fetch can not cache a value that
+ * was overwritten while it was running.
+ *
+ * @author Aaron McCurry
+ */
+class RowCache implements ResultCache {
+
+	private static final int ROW_OVERHEAD = 96;
+	private static final int RESULT_OVERHEAD = 64;
+	private static final int CELL_OVERHEAD = 48;
+	private static final double PROTECTED_RATIO = 0.8;
+	private long maxBytes;
+	private long maxProtectedBytes;
+	private long ttlMillis;
+	private Map<ByteBuffer, Entry> probation = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true);
+	private Map<ByteBuffer, Entry> protectedRows = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true);
+	private long probationBytes;
+	private long protectedBytes;
+	private long generation;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+	private long invalidations;
+
+	/**
+	 * @param maxBytes
+	 *            the max estimated size of the cached results.
+	 * @param ttlMillis
+	 *            the time to live of a cached result, or a negative number to
+	 *            keep results until they are evicted or invalidated.
+	 */
+	RowCache(long maxBytes, long ttlMillis) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("Max bytes [" + maxBytes + "] must be at least 1.");
+		}
+		this.maxBytes = maxBytes;
+		this.maxProtectedBytes = (long) (maxBytes * PROTECTED_RATIO);
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Builds the cache key for the families and columns of the given get.
+	 * 
+	 * @return the key, or null if the get can not be cached because it has a
+	 *         filter, a time range or asks for more than one version.
+	 */
+	static ByteBuffer projection(Get get) {
+		if (get.getFilter() != null || get.getMaxVersions() != 1) {
+			return null;
+		}
+		TimeRange timeRange = get.getTimeRange();
+		if (timeRange != null && (timeRange.getMin() != 0 || timeRange.getMax() != Long.MAX_VALUE)) {
+			return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Map.Entry<byte[], NavigableSet<byte[]>> family : get.getFamilyMap().entrySet()) {
+			write(out, family.getKey());
+			if (family.getValue() == null) {
+				write(out, null);
+			} else {
+				for (byte[] qualifier : family.getValue()) {
+					write(out, qualifier);
+				}
+			}
+		}
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	@Override
+	public synchronized Result get(byte[] row, ByteBuffer projection) {
+		ByteBuffer key = ByteBuffer.wrap(row);
+		Entry entry = probation.get(key);
+		if (entry == null) {
+			entry = protectedRows.get(key);
+		}
+		Cached cached = entry == null ? null : entry.results.get(projection);
+		if (cached == null) {
+			misses++;
+			return null;
+		}
+		if (cached.expires >= 0 && cached.expires < System.currentTimeMillis()) {
+			expirations++;
+			misses++;
+			entry.results.remove(projection);
+			resize(entry, -cached.size);
+			if (entry.results.isEmpty()) {
+				remove(key);
+			}
+			return null;
+		}
+		hits++;
+		if (!entry.isProtected) {
+			promote(key, entry);
+		}
+		return cached.result;
+	}
+
+	@Override
+	public synchronized void put(byte[] row, ByteBuffer projection, Result result, long generation) {
+		if (generation != this.generation || result == null || result.isEmpty()) {
+			return;
+		}
+		long size = size(result);
+		if (size > maxBytes) {
+			return;
+		}
+		ByteBuffer key = ByteBuffer.wrap(row);
+		Entry entry = probation.get(key);
+		if (entry == null) {
+			entry = protectedRows.get(key);
+		}
+		if (entry == null) {
+			entry = new Entry();
+			probation.put(key, entry);
+			resize(entry, ROW_OVERHEAD + row.length);
+		}
+		long expires = ttlMillis < 0 ? -1 : System.currentTimeMillis() + ttlMillis;
+		Cached old = entry.results.put(projection, new Cached(result, size, expires));
+		resize(entry, old == null ? size : size - old.size);
+		while (probationBytes + protectedBytes > maxBytes) {
+			Map<ByteBuffer, Entry> segment = probation.isEmpty() ? protectedRows : probation;
+			remove(segment.keySet().iterator().next());
+			evictions++;
+		}
+	}
+
+	@Override
+	public synchronized void invalidate(byte[] row) {
+		generation++;
+		if (remove(ByteBuffer.wrap(row))) {
+			invalidations++;
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		generation++;
+		invalidations += probation.size() + protectedRows.size();
+		probation.clear();
+		protectedRows.clear();
+		probationBytes = 0;
+		protectedBytes = 0;
+	}
+
+	@Override
+	public synchronized long generation() {
+		return generation;
+	}
+
+	@Override
+	public synchronized CacheStats getStats() {
+		return new CacheStats(hits, misses, evictions, expirations, invalidations, probation.size()
+				+ protectedRows.size(), probationBytes + protectedBytes);
+	}
+
+	/**
+	 * Moves a row that was hit while on probation to the protected segment,
+	 * demoting the least recently used protected rows back to probation.
+	 */
+	private void promote(ByteBuffer key, Entry entry) {
+		probation.remove(key);
+		probationBytes -= entry.size;
+		entry.isProtected = true;
+		protectedRows.put(key, entry);
+		protectedBytes += entry.size;
+		Iterator<Map.Entry<ByteBuffer, Entry>> iterator = protectedRows.entrySet().iterator();
+		while (protectedBytes > maxProtectedBytes && protectedRows.size() > 1) {
+			Map.Entry<ByteBuffer, Entry> eldest = iterator.next();
+			iterator.remove();
+			Entry demoted = eldest.getValue();
+			demoted.isProtected = false;
+			protectedBytes -= demoted.size;
+			probation.put(eldest.getKey(), demoted);
+			probationBytes += demoted.size;
+		}
+	}
+
+	private boolean remove(ByteBuffer key) {
+		Entry entry = probation.remove(key);
+		if (entry == null) {
+			entry = protectedRows.remove(key);
+		}
+		if (entry == null) {
+			return false;
+		}
+		resize(entry, -entry.size);
+		return true;
+	}
+
+	private void resize(Entry entry, long delta) {
+		entry.size += delta;
+		if (entry.isProtected) {
+			protectedBytes += delta;
+		} else {
+			probationBytes += delta;
+		}
+	}
+
+	private static long size(Result result) {
+		long size = RESULT_OVERHEAD;
+		for (KeyValue keyValue : result.raw()) {
+			size += CELL_OVERHEAD + keyValue.getLength();
+		}
+		return size;
+	}
+
+	private static void write(ByteArrayOutputStream out, byte[] bytes) {
+		if (bytes == null) {
+			out.write(Bytes.toBytes(-1), 0, Bytes.SIZEOF_INT);
+		} else {
+			out.write(Bytes.toBytes(bytes.length), 0, Bytes.SIZEOF_INT);
+			out.write(bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * The cached results of a single row.
+	 */
+	private static class Entry {
+		Map<ByteBuffer, Cached> results = new HashMap<ByteBuffer, Cached>();
+		long size;
+		boolean isProtected;
+	}
+
+	private static class Cached {
+		final Result result;
+		final long size;
+		final long expires;
+
+		Cached(Result result, long size, long expires) {
+			this.result = result;
+			this.size = size;
+			this.expires = expires;
+		}
+	}
+}
@@ -17,8 +17,10 @@ package com.nearinfinity.hbase.dsl;
  * limitations under the License.
  */
 
+import java.util.Collections;
 import java.util.Date;
 
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 
@@ -36,10 +38,20 @@ public class SaveRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 
 	private HBase<QUERY_OP_TYPE, ROW_ID_TYPE> hBase;
 	private byte[] tableName;
+	private BulkLoad<QUERY_OP_TYPE, ROW_ID_TYPE> bulkLoad;
 
 	SaveRow(HBase<QUERY_OP_TYPE, ROW_ID_TYPE> hBase, byte[] tableName) {
+		this(hBase, tableName, null);
+	}
+
+	/**
+	 * Creates a save row that adds its columns to the given bulk load instead
+	 * of the write buffer.
+	 */
+	SaveRow(HBase<QUERY_OP_TYPE, ROW_ID_TYPE> hBase, byte[] tableName, BulkLoad<QUERY_OP_TYPE, ROW_ID_TYPE> bulkLoad) {
 		this.hBase = hBase;
 		this.tableName = tableName;
+		this.bulkLoad = bulkLoad;
 	}
 
 	public SaveFamilyCol<QUERY_OP_TYPE, ROW_ID_TYPE> row(ROW_ID_TYPE id) {
@@ -66,7 +78,6 @@ public class SaveRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 			this.saveRow = saveRow;
 			this.hBase = hBase;
 			this.tableName = tableName;
-			this.hBase.savePut(tableName, put);
 		}
 
 		public SaveFamilyCol<T, I> family(String name) {
@@ -97,11 +108,11 @@ public class SaveRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 			if (o == null) {
 				return this;
 			}
-			if (timestamp == null) {
-				put.add(currentFamily, qualifier, hBase.toBytes(o));
-			} else {
-				put.add(currentFamily, qualifier, timestamp, hBase.toBytes(o));
+			if (saveRow.bulkLoad != null) {
+				saveRow.bulkLoad.add(put.getRow(), currentFamily, qualifier, timestamp, hBase.toBytes(o));
+				return this;
 			}
+			put = hBase.savePut(tableName, put, currentFamily, qualifier, timestamp, hBase.toBytes(o));
 			return this;
 		}
 		
@@ -116,13 +127,201 @@ public class SaveRow<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> {
 			return col(qualifier,o,timestamp.getTime());
 		}
 
+		/**
+		 * Increments a counter column. Increments of the same column are
+		 * summed until the table is flushed and then applied at once.
+		 * 
+		 * @param qualifier
+		 *            the column name.
+		 * @param amount
+		 *            the amount to add.
+		 * @return this.
+		 */
+		public SaveFamilyCol<T, I> increment(String qualifier, long amount) {
+			return increment(Bytes.toBytes(qualifier), amount, 1);
+		}
+
+		public SaveFamilyCol<T, I> increment(byte[] qualifier, long amount) {
+			return increment(qualifier, amount, 1);
+		}
+
+		/**
+		 * Increments a counter column that is spread over the given number of
+		 * shard rows, so a hot counter is not updated through a single row.
+		 * Read the total with {@link HBase#counter(String, Object, String, String, int)}.
+		 * The shard rows are stored in the table next to the other rows, so
+		 * scans of the table return them as well.
+		 * 
+		 * @param qualifier
+		 *            the column name.
+		 * @param amount
+		 *            the amount to add.
+		 * @param shards
+		 *            the number of shard rows, 1 to 256.
+		 * @return this.
+		 */
+		public SaveFamilyCol<T, I> increment(String qualifier, long amount, int shards) {
+			return increment(Bytes.toBytes(qualifier), amount, shards);
+		}
+
+		public SaveFamilyCol<T, I> increment(byte[] qualifier, long amount, int shards) {
+			if (currentFamily == null) {
+				throw new RuntimeException("not implemented");
+			}
+			checkNotBulkLoad();
+			hBase.saveIncrement(tableName, put.getRow(), currentFamily, qualifier, amount, shards);
+			return this;
+		}
+
+		/**
+		 * Starts a conditional save of this row that is only applied if the
+		 * given column holds the given value. Must be called before any
+		 * columns are saved.
+		 * 
+		 * @param family
+		 *            the family of the checked column.
+		 * @param qualifier
+		 *            the checked column name.
+		 * @param value
+		 *            the expected value, null to expect the column to be
+		 *            missing.
+		 * @return the {@link ConditionalSave}.
+		 */
+		public ConditionalSave<T, I> ifEquals(String family, String qualifier, Object value) {
+			return ifEquals(Bytes.toBytes(family), Bytes.toBytes(qualifier), value);
+		}
+
+		public ConditionalSave<T, I> ifEquals(byte[] family, byte[] qualifier, Object value) {
+			if (!put.isEmpty()) {
+				throw new IllegalStateException("Columns have already been saved for this row.");
+			}
+			checkNotBulkLoad();
+			// the region server expects an empty value for a missing column, never null
+			byte[] expected = value == null ? HConstants.EMPTY_BYTE_ARRAY : hBase.toBytes(value);
+			return new ConditionalSave<T, I>(hBase, tableName, put.getRow(), family, qualifier, expected);
+		}
+
+		/**
+		 * Starts a conditional save of this row that is only applied if the
+		 * given column does not exist. Must be called before any columns are
+		 * saved.
+		 * 
+		 * @param family
+		 *            the family of the checked column.
+		 * @param qualifier
+		 *            the checked column name.
+		 * @return the {@link ConditionalSave}.
+		 */
+		public ConditionalSave<T, I> ifMissing(String family, String qualifier) {
+			return ifEquals(family, qualifier, null);
+		}
+
+		public ConditionalSave<T, I> ifMissing(byte[] family, byte[] qualifier) {
+			return ifEquals(family, qualifier, null);
+		}
+
 		public SaveFamilyCol<T, I> row(I id) {
 			return saveRow.row(id);
 		}
 
+		/**
+		 * Registers a callback that is notified once the columns saved so far
+		 * have been flushed, or once their flush failed.
+		 * 
+		 * @param callback
+		 *            the callback.
+		 * @return this.
+		 */
+		public SaveFamilyCol<T, I> whenWritten(WriteCallback callback) {
+			checkNotBulkLoad();
+			hBase.saveCallback(tableName, callback);
+			return this;
+		}
+
 		public SaveFamilyCol<T, I> flush() {
-			hBase.flush(tableName);
+			if (saveRow.bulkLoad == null) {
+				hBase.flush(tableName);
+			}
 			return this;
 		}
+
+		private void checkNotBulkLoad() {
+			if (saveRow.bulkLoad != null) {
+				throw new UnsupportedOperationException("Not supported by a bulk load.");
+			}
+		}
+	}
+
+	/**
+	 * A save of a single row that is guarded by the value of one column. The
+	 * columns are collected until {@link #apply()} is called, which writes
+	 * them with a single check and put bypassing the write buffer.
+	 */
+	public static class ConditionalSave<T extends QueryOps<I>, I> {
+
+		private HBase<T, I> hBase;
+		private byte[] currentFamily;
+		final byte[] tableName;
+		final Put put;
+		final byte[] checkFamily;
+		final byte[] checkQualifier;
+		final byte[] checkValue;
+
+		ConditionalSave(HBase<T, I> hBase, byte[] tableName, byte[] row, byte[] checkFamily, byte[] checkQualifier,
+				byte[] checkValue) {
+			this.hBase = hBase;
+			this.tableName = tableName;
+			this.put = new Put(row);
+			this.checkFamily = checkFamily;
+			this.checkQualifier = checkQualifier;
+			this.checkValue = checkValue;
+		}
+
+		public ConditionalSave<T, I> family(String name) {
+			return family(Bytes.toBytes(name));
+		}
+
+		public ConditionalSave<T, I> family(byte[] name) {
+			currentFamily = name;
+			return this;
+		}
+
+		public ConditionalSave<T, I> col(String qualifier, Object o) {
+			return col(Bytes.toBytes(qualifier), o, (Long) null);
+		}
+
+		public ConditionalSave<T, I> col(byte[] qualifier, Object o) {
+			return col(qualifier, o, (Long) null);
+		}
+
+		public ConditionalSave<T, I> col(String qualifier, Object o, Long timestamp) {
+			return col(Bytes.toBytes(qualifier), o, timestamp);
+		}
+
+		public ConditionalSave<T, I> col(byte[] qualifier, Object o, Long timestamp) {
+			if (currentFamily == null) {
+				throw new RuntimeException("not implemented");
+			}
+			if (o == null) {
+				return this;
+			}
+			if (timestamp == null) {
+				put.add(currentFamily, qualifier, hBase.toBytes(o));
+			} else {
+				put.add(currentFamily, qualifier, timestamp, hBase.toBytes(o));
+			}
+			return this;
+		}
+
+		/**
+		 * Writes the columns if the checked column still holds the expected
+		 * value. Pending changes of the table are flushed first, so the check
+		 * sees them.
+		 * 
+		 * @return true if the columns were written.
+		 */
+		public boolean apply() {
+			return hBase.apply(Collections.singletonList(this)).get(0);
+		}
 	}
 }
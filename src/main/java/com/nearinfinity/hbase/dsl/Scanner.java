@@ -17,14 +17,25 @@ package com.nearinfinity.hbase.dsl;
  * limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.util.Bytes;
 
 /**
  * 
@@ -38,12 +49,21 @@ import org.apache.hadoop.hbase.filter.Filter;
  */
 public class Scanner<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> implements Iterable<Row<ROW_ID_TYPE>> {
 
-	private HTable hTable;
+	private static final int MIN_ADAPTIVE_CACHING = 1;
+	private static final int MAX_ADAPTIVE_CACHING = 10000;
+	private static final int INITIAL_ADAPTIVE_CACHING = 100;
+	private static final int RPCS_PER_SEGMENT = 16;
+	private static final int DEFAULT_PREFETCH_ROWS = 100;
+	private byte[] tableName;
 	private Scan scan;
+	private long targetBytesPerRpc;
+	private int parallelism = 1;
+	private boolean ordered = true;
+	private int prefetchBatches;
 	private HBase<QUERY_OP_TYPE, ROW_ID_TYPE> hBase;
 
-	Scanner(HBase<QUERY_OP_TYPE, ROW_ID_TYPE> hBase, HTable hTable, ROW_ID_TYPE startId, ROW_ID_TYPE endId) {
-		this.hTable = hTable;
+	Scanner(HBase<QUERY_OP_TYPE, ROW_ID_TYPE> hBase, byte[] tableName, ROW_ID_TYPE startId, ROW_ID_TYPE endId) {
+		this.tableName = tableName;
 		this.hBase = hBase;
 		if (startId != null && endId != null) {
 			this.scan = new Scan(hBase.toBytes(startId), hBase.toBytes(endId));
@@ -54,30 +74,101 @@ public class Scanner<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> i
 		}
 	}
 
+	/**
+	 * Opens the scan, a caller that stops before the last row should close
+	 * the iterator. Rows are best processed with {@link #foreach(ForEach)},
+	 * which always closes the scan.
+	 */
 	@Override
-	public Iterator<Row<ROW_ID_TYPE>> iterator() {
+	public RowIterator<ROW_ID_TYPE> iterator() {
+		return new RowIterator<ROW_ID_TYPE>(hBase, results());
+	}
+
+	/**
+	 * Opens the scan on a pooled table handle, the handle is given back once
+	 * the results are exhausted or closed.
+	 * 
+	 * @return the raw results of this scan.
+	 */
+	Results results() {
+		Results results = open();
+		if (prefetchBatches > 0) {
+			int rows = scan.getCaching() > 0 ? scan.getCaching() : DEFAULT_PREFETCH_ROWS;
+			return new PrefetchResults(results, prefetchBatches, rows);
+		}
+		return results;
+	}
+
+	private Results open() {
+		if (parallelism > 1) {
+			List<Scan> pieces = split();
+			if (pieces.size() > 1) {
+				return new ParallelResults(hBase, tableName, pieces, targetBytesPerRpc, parallelism, ordered);
+			}
+		}
 		try {
-			ResultScanner scanner = hTable.getScanner(scan);
-			final Iterator<Result> iterator = scanner.iterator();
-			return new Iterator<Row<ROW_ID_TYPE>>() {
-				@Override
-				public boolean hasNext() {
-					return iterator.hasNext();
-				}
+			return open(hBase, tableName, targetBytesPerRpc > 0 ? copy(scan) : scan, targetBytesPerRpc);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-				@Override
-				public Row<ROW_ID_TYPE> next() {
-					return hBase.convert(iterator.next());
-				}
+	/**
+	 * Opens the given scan on a pooled table handle.
+	 */
+	static Results open(HBase<?, ?> hBase, byte[] tableName, Scan scan, long targetBytesPerRpc) throws IOException {
+		HTable table = hBase.getTable(tableName);
+		try {
+			return new ScannerResults(hBase, table, scan, targetBytesPerRpc);
+		} catch (IOException e) {
+			hBase.putTable(table);
+			throw e;
+		} catch (RuntimeException e) {
+			hBase.putTable(table);
+			throw e;
+		}
+	}
 
-				@Override
-				public void remove() {
-					throw new RuntimeException("read only");
+	/**
+	 * Splits the range of this scan on the region boundaries of the table,
+	 * every piece is a copy of the scan with the same filter and columns.
+	 */
+	private List<Scan> split() {
+		byte[][] startKeys;
+		HTable table = hBase.getTable(tableName);
+		try {
+			startKeys = table.getStartKeys();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			hBase.putTable(table);
+		}
+		byte[] start = scan.getStartRow();
+		byte[] stop = scan.getStopRow();
+		List<Scan> pieces = new ArrayList<Scan>();
+		try {
+			for (byte[] startKey : startKeys) {
+				if (startKey.length == 0 || Bytes.compareTo(startKey, start) <= 0) {
+					continue;
 				}
-			};
+				if (stop.length > 0 && Bytes.compareTo(startKey, stop) >= 0) {
+					break;
+				}
+				pieces.add(piece(start, startKey));
+				start = startKey;
+			}
+			pieces.add(piece(start, stop));
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		return pieces;
+	}
+
+	private Scan piece(byte[] start, byte[] stop) throws IOException {
+		Scan piece = copy(scan);
+		piece.setStartRow(start);
+		piece.setStopRow(stop);
+		return piece;
 	}
 
 	/**
@@ -88,9 +179,131 @@ public class Scanner<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> i
 	 *            the {@link ForEach} object provided to perform the processing.
 	 */
 	public void foreach(ForEach<Row<ROW_ID_TYPE>> forEach) {
-		for (Row<ROW_ID_TYPE> row : this) {
-			forEach.process(row);
+		Results results = results();
+		try {
+			while (results.hasNext()) {
+				forEach.process(hBase.convert(results.next()));
+			}
+		} finally {
+			results.close();
+		}
+	}
+
+	/**
+	 * Runs {@link #foreach(ForEach)} on the async executor, the rows are
+	 * processed on the thread of the executor.
+	 * 
+	 * @param forEach
+	 *            the {@link ForEach} object provided to perform the processing.
+	 * @return a future that completes once every row has been processed.
+	 */
+	public Future<Void> foreachAsync(ForEach<Row<ROW_ID_TYPE>> forEach) {
+		return foreachAsync(forEach, null);
+	}
+
+	public Future<Void> foreachAsync(final ForEach<Row<ROW_ID_TYPE>> forEach, AsyncCallback<Void> callback) {
+		return hBase.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				foreach(forEach);
+				return null;
+			}
+		}, callback);
+	}
+
+	/**
+	 * Sets the number of rows fetched with each call to the region server.
+	 * In adaptive mode this is the number of rows of the first call.
+	 * 
+	 * @param rows
+	 *            the number of rows.
+	 * @return this.
+	 */
+	public Scanner<QUERY_OP_TYPE, ROW_ID_TYPE> caching(int rows) {
+		if (rows < 1) {
+			throw new IllegalArgumentException("Caching [" + rows + "] must be at least 1.");
+		}
+		scan.setCaching(rows);
+		return this;
+	}
+
+	/**
+	 * Adapts the number of rows fetched with each call to the region server
+	 * to the size of the rows, so each call moves about the target number of
+	 * bytes. The caching of an open scan can not be changed, so the scan is
+	 * reopened after the last row read whenever the caching is adapted, at
+	 * first after a single call and then after every 16 calls. Filters that
+	 * keep state across rows, such as a page filter, start over when the scan
+	 * is reopened.
+	 * 
+	 * @param targetBytesPerRpc
+	 *            the target number of bytes per call, or 0 to turn adaptive
+	 *            caching off.
+	 * @return this.
+	 */
+	public Scanner<QUERY_OP_TYPE, ROW_ID_TYPE> adaptiveCaching(long targetBytesPerRpc) {
+		if (targetBytesPerRpc < 0) {
+			throw new IllegalArgumentException("Target bytes per rpc [" + targetBytesPerRpc + "] can not be negative.");
+		}
+		this.targetBytesPerRpc = targetBytesPerRpc;
+		return this;
+	}
+
+	/**
+	 * Splits the scan on the region boundaries of the table and scans the
+	 * pieces concurrently, the rows are delivered in order of their ids.
+	 * 
+	 * @param threads
+	 *            the maximum number of pieces scanned at the same time.
+	 * @return this.
+	 * @see #parallel(int, boolean)
+	 */
+	public Scanner<QUERY_OP_TYPE, ROW_ID_TYPE> parallel(int threads) {
+		return parallel(threads, true);
+	}
+
+	/**
+	 * Splits the scan on the region boundaries of the table and scans the
+	 * pieces concurrently on a pool of the given size. Every piece is
+	 * scanned with the same filter and columns, filters that keep state
+	 * across rows, such as a page filter, start over for each piece. The rows
+	 * are still handed out on the calling thread, so a {@link ForEach} does
+	 * not have to be thread safe.
+	 * 
+	 * @param threads
+	 *            the maximum number of pieces scanned at the same time, 1 to
+	 *            scan serially.
+	 * @param ordered
+	 *            true to deliver the rows in order of their ids, false to
+	 *            deliver each row as soon as any piece has read it.
+	 * @return this.
+	 */
+	public Scanner<QUERY_OP_TYPE, ROW_ID_TYPE> parallel(int threads, boolean ordered) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Threads [" + threads + "] must be at least 1.");
 		}
+		this.parallelism = threads;
+		this.ordered = ordered;
+		return this;
+	}
+
+	/**
+	 * Reads the rows ahead of the consumer on a background thread, so
+	 * fetching rows overlaps with processing them. The rows are read in
+	 * batches of the caching size, 100 rows if no caching is set, and at
+	 * most the given number of batches are held ready.
+	 * 
+	 * @param batches
+	 *            the number of batches read ahead, or 0 to turn prefetching
+	 *            off.
+	 * @return this.
+	 */
+	public Scanner<QUERY_OP_TYPE, ROW_ID_TYPE> prefetch(int batches) {
+		if (batches < 0) {
+			throw new IllegalArgumentException("Batches [" + batches + "] can not be negative.");
+		}
+		this.prefetchBatches = batches;
+		return this;
 	}
 
 	public Where<QUERY_OP_TYPE, ROW_ID_TYPE> where() {
@@ -137,4 +350,187 @@ public class Scanner<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> i
 		scan.setMaxVersions();
 	}
 
+	private static Scan copy(Scan scan) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		scan.write(new DataOutputStream(bytes));
+		Scan copy = new Scan();
+		copy.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		return copy;
+	}
+
+	/**
+	 * Iterates over the rows of a scan. The scan is closed once the last row
+	 * has been read, a caller that stops early should call {@link #close()}.
+	 * Otherwise the table handle of the scan, and the threads of a parallel
+	 * or prefetching scan, are only released once the iterator has been
+	 * garbage collected.
+	 */
+	public static class RowIterator<ROW_ID_TYPE> implements Iterator<Row<ROW_ID_TYPE>> {
+
+		private HBase<?, ROW_ID_TYPE> hBase;
+		private Results results;
+
+		RowIterator(HBase<?, ROW_ID_TYPE> hBase, Results results) {
+			this.hBase = hBase;
+			this.results = results;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return results.hasNext();
+		}
+
+		@Override
+		public Row<ROW_ID_TYPE> next() {
+			return hBase.convert(results.next());
+		}
+
+		@Override
+		public void remove() {
+			throw new RuntimeException("read only");
+		}
+
+		/**
+		 * Closes the scan before its last row, this can be called more than
+		 * once.
+		 */
+		public void close() {
+			results.close();
+		}
+
+		@Override
+		protected void finalize() throws Throwable {
+			close();
+		}
+	}
+
+	/**
+	 * The results of a scan, the resources of the scan are released once the
+	 * last result has been read, or when {@link #close()} is called.
+	 */
+	interface Results extends Iterator<Result> {
+
+		void close();
+	}
+
+	/**
+	 * The results of an open scan. The scanner is closed and the table handle
+	 * given back to the pool once the last result has been read, or when
+	 * {@link #close()} is called.
+	 * <p>
+	 * With a target size per call the scan is read in segments, each segment
+	 * is a scanner opened after the last row of the previous one with the
+	 * caching adapted to the average row size seen so far.
+	 */
+	static class ScannerResults implements Results {
+
+		private HBase<?, ?> hBase;
+		private HTable table;
+		private Scan scan;
+		private ResultScanner scanner;
+		private Iterator<Result> iterator;
+		private boolean closed;
+		private long targetBytesPerRpc;
+		private long segmentRowsLeft;
+		private long segmentRows;
+		private long segmentBytes;
+		private byte[] lastRow;
+
+		ScannerResults(HBase<?, ?> hBase, HTable table, Scan scan, long targetBytesPerRpc) throws IOException {
+			this.hBase = hBase;
+			this.table = table;
+			this.scan = scan;
+			this.targetBytesPerRpc = targetBytesPerRpc;
+			if (targetBytesPerRpc > 0) {
+				if (scan.getCaching() < 1) {
+					scan.setCaching(INITIAL_ADAPTIVE_CACHING);
+				}
+				segmentRowsLeft = scan.getCaching();
+			}
+			open();
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (closed) {
+				return false;
+			}
+			if (targetBytesPerRpc > 0 && segmentRowsLeft == 0) {
+				nextSegment();
+			}
+			if (iterator.hasNext()) {
+				return true;
+			}
+			close();
+			return false;
+		}
+
+		@Override
+		public Result next() {
+			if (closed) {
+				throw new NoSuchElementException();
+			}
+			Result result = iterator.next();
+			if (targetBytesPerRpc > 0 && result != null) {
+				lastRow = result.getRow();
+				segmentRows++;
+				segmentBytes += size(result);
+				segmentRowsLeft--;
+			}
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new RuntimeException("read only");
+		}
+
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				scanner.close();
+			} finally {
+				hBase.putTable(table);
+			}
+		}
+
+		private void open() throws IOException {
+			scanner = table.getScanner(scan);
+			iterator = scanner.iterator();
+		}
+
+		/**
+		 * Reopens the scan after the last row read with the caching adapted
+		 * to the rows of the segment that just ended.
+		 */
+		private void nextSegment() {
+			long average = Math.max(1, segmentBytes / Math.max(1, segmentRows));
+			int caching = (int) Math.max(MIN_ADAPTIVE_CACHING, Math.min(MAX_ADAPTIVE_CACHING, targetBytesPerRpc
+					/ average));
+			scanner.close();
+			scan.setStartRow(Bytes.add(lastRow, new byte[] { 0 }));
+			scan.setCaching(caching);
+			segmentRowsLeft = (long) caching * RPCS_PER_SEGMENT;
+			segmentRows = 0;
+			segmentBytes = 0;
+			try {
+				open();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private static long size(Result result) {
+			long size = 0;
+			for (KeyValue keyValue : result.raw()) {
+				size += keyValue.getLength();
+			}
+			return size;
+		}
+	}
+
 }
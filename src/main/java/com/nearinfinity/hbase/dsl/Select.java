@@ -18,7 +18,7 @@ package com.nearinfinity.hbase.dsl;
  */
 
 import java.util.Date;
-import java.util.Iterator;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.hbase.util.Bytes;
 
@@ -46,6 +46,14 @@ public class Select<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> im
 		scanner.foreach(forEach);
 	}
 
+	public Future<Void> foreachAsync(ForEach<Row<ROW_ID_TYPE>> forEach) {
+		return scanner.foreachAsync(forEach);
+	}
+
+	public Future<Void> foreachAsync(ForEach<Row<ROW_ID_TYPE>> forEach, AsyncCallback<Void> callback) {
+		return scanner.foreachAsync(forEach, callback);
+	}
+
 	public Select<QUERY_OP_TYPE, ROW_ID_TYPE> family(String name) {
 		return family(Bytes.toBytes(name));
 	}
@@ -66,7 +74,7 @@ public class Select<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> im
 	}
 
 	@Override
-	public Iterator<Row<ROW_ID_TYPE>> iterator() {
+	public Scanner.RowIterator<ROW_ID_TYPE> iterator() {
 		return scanner.iterator();
 	}
 
@@ -90,6 +98,46 @@ public class Select<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> im
 		return this;
 	}
 
+	/**
+	 * Sets the number of rows fetched with each call to the region server,
+	 * see {@link Scanner#caching(int)}.
+	 */
+	public Select<QUERY_OP_TYPE, ROW_ID_TYPE> caching(int rows) {
+		scanner.caching(rows);
+		return this;
+	}
+
+	/**
+	 * Adapts the number of rows fetched with each call to the size of the
+	 * rows, see {@link Scanner#adaptiveCaching(long)}.
+	 */
+	public Select<QUERY_OP_TYPE, ROW_ID_TYPE> adaptiveCaching(long targetBytesPerRpc) {
+		scanner.adaptiveCaching(targetBytesPerRpc);
+		return this;
+	}
+
+	/**
+	 * Scans the regions of the table concurrently, the rows are delivered in
+	 * order, see {@link Scanner#parallel(int, boolean)}.
+	 */
+	public Select<QUERY_OP_TYPE, ROW_ID_TYPE> parallel(int threads) {
+		scanner.parallel(threads);
+		return this;
+	}
+
+	public Select<QUERY_OP_TYPE, ROW_ID_TYPE> parallel(int threads, boolean ordered) {
+		scanner.parallel(threads, ordered);
+		return this;
+	}
+
+	/**
+	 * Reads the rows ahead of the consumer, see {@link Scanner#prefetch(int)}.
+	 */
+	public Select<QUERY_OP_TYPE, ROW_ID_TYPE> prefetch(int batches) {
+		scanner.prefetch(batches);
+		return this;
+	}
+
 	public Select<QUERY_OP_TYPE, ROW_ID_TYPE> allVersions() {
 		scanner.allVersions();
 		return this;
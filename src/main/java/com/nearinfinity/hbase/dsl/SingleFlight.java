@@ -0,0 +1,66 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.hadoop.hbase.client.Result;
+
+/**
+ * Lets concurrent fetches of the same key share a single call to the table.
+ * The first caller runs the fetch on its own thread, callers that arrive
+ * while it is running wait for it and get the same {@link Result}. Once the
+ * fetch is done the key is removed, so later callers fetch again.
+ * 
+ * @author Aaron McCurry
+ */
+class SingleFlight {
+
+	private ConcurrentMap<ByteBuffer, FutureTask<Result>> inFlight = new ConcurrentHashMap<ByteBuffer, FutureTask<Result>>();
+
+	Result get(ByteBuffer key, Callable<Result> fetch) {
+		FutureTask<Result> task = new FutureTask<Result>(fetch);
+		FutureTask<Result> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			running = task;
+		}
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+}
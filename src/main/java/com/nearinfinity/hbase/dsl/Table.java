@@ -13,4 +13,26 @@ public interface Table<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE>
 	Scanner<QUERY_OP_TYPE, ROW_ID_TYPE> scan(ROW_ID_TYPE startId, ROW_ID_TYPE endId);
 
 	DeletedRow<QUERY_OP_TYPE, ROW_ID_TYPE> delete();
+
+	/**
+	 * Reads the value of a counter column, see
+	 * {@link HBase#counter(byte[], Object, byte[], byte[], int)}.
+	 */
+	long counter(ROW_ID_TYPE id, String family, String qualifier);
+
+	/**
+	 * Reads the total of a counter column spread over the given number of
+	 * shard rows, see {@link HBase#counter(byte[], Object, byte[], byte[], int)}.
+	 */
+	long counter(ROW_ID_TYPE id, String family, String qualifier, int shards);
+
+	/**
+	 * Sets the {@link BatchPolicy} that decides when the pending changes of
+	 * this table are flushed.
+	 * 
+	 * @param policy
+	 *            the batch policy, or null to use the default policy.
+	 * @return this.
+	 */
+	Table<QUERY_OP_TYPE, ROW_ID_TYPE> batchPolicy(BatchPolicy policy);
 }
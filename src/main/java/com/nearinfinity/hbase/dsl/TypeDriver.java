@@ -109,6 +109,24 @@ public class TypeDriver {
 		return typeConverter.fromBytes(value);
 	}
 
+	/**
+	 * Gets the converter for the given type, so callers converting many values
+	 * of the same type can look it up once.
+	 * 
+	 * @param <U>
+	 *            the type.
+	 * @param cl
+	 *            the class of the type.
+	 * @return the converter.
+	 */
+	public <U> TypeConverter<U> getTypeConverter(Class<U> cl) {
+		TypeConverter<U> typeConverter = (TypeConverter<U>) converters.get(cl);
+		if (typeConverter == null) {
+			throw new RuntimeException("No type found for class [" + cl + "]");
+		}
+		return typeConverter;
+	}
+
 	/**
 	 * Registers a single type converter into this driver.
 	 * 
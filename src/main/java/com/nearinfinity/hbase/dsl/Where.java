@@ -17,7 +17,7 @@ package com.nearinfinity.hbase.dsl;
  * limitations under the License.
  */
 
-import java.util.Iterator;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.Filter;
@@ -78,6 +78,22 @@ public class Where<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> imp
 		scanner.foreach(forEach);
 	}
 
+	/**
+	 * Runs {@link #foreach(ForEach)} on the async executor.
+	 * 
+	 * @param forEach
+	 *            the {@link ForEach} object provided to perform the processing.
+	 * @return a future that completes once every row has been processed.
+	 */
+	public Future<Void> foreachAsync(ForEach<Row<ROW_ID_TYPE>> forEach) {
+		return foreachAsync(forEach, null);
+	}
+
+	public Future<Void> foreachAsync(ForEach<Row<ROW_ID_TYPE>> forEach, AsyncCallback<Void> callback) {
+		scanner.setFilter(context.getResultingFilter());
+		return scanner.foreachAsync(forEach, callback);
+	}
+
 	/**
 	 * Adds a user provided filter with all the built in functions.
 	 * 
@@ -155,7 +171,7 @@ public class Where<QUERY_OP_TYPE extends QueryOps<ROW_ID_TYPE>, ROW_ID_TYPE> imp
 	}
 
 	@Override
-	public Iterator<Row<ROW_ID_TYPE>> iterator() {
+	public Scanner.RowIterator<ROW_ID_TYPE> iterator() {
 		return scanner.iterator();
 	}
 }
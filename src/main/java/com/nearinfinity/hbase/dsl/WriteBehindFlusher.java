@@ -0,0 +1,187 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Flushes the pending changes of an {@link HBase} object on a background
+ * thread. The number of mutations that can be pending at once is bounded, once
+ * the limit is reached callers either block until a flush completes or are
+ * rejected.
+ *
+ * @author Aaron McCurry
+ */
+class WriteBehindFlusher implements Runnable {
+
+	private static final Log LOG = LogFactory.getLog(WriteBehindFlusher.class);
+	private HBase<?, ?> hBase;
+	private ScheduledExecutorService executor;
+	private Semaphore budget;
+	private int maxPendingMutations;
+	private long flushIntervalMillis;
+	private boolean blockWhenFull;
+	private Set<byte[]> requested = new ConcurrentSkipListSet<byte[]>(Bytes.BYTES_COMPARATOR);
+	private Set<byte[]> lingering = new ConcurrentSkipListSet<byte[]>(Bytes.BYTES_COMPARATOR);
+	private volatile RuntimeException failure;
+	private volatile boolean closed;
+
+	WriteBehindFlusher(HBase<?, ?> hBase, long flushInterval, TimeUnit unit, int maxPendingMutations,
+			boolean blockWhenFull) {
+		this.hBase = hBase;
+		this.maxPendingMutations = maxPendingMutations;
+		this.flushIntervalMillis = unit.toMillis(flushInterval);
+		this.blockWhenFull = blockWhenFull;
+		this.budget = new Semaphore(maxPendingMutations);
+		this.executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("hbase-dsl-write-behind"));
+		executor.scheduleWithFixedDelay(this, flushInterval, flushInterval, unit);
+	}
+
+	@Override
+	public void run() {
+		try {
+			hBase.flushClosed();
+		} catch (RuntimeException e) {
+			LOG.error("Write behind flush failed.", e);
+			failure = e;
+		}
+	}
+
+	/**
+	 * Asks the background thread to flush the given table as soon as
+	 * possible.
+	 *
+	 * @param tableName
+	 *            the table name.
+	 */
+	void requestFlush(final byte[] tableName) {
+		if (closed || !requested.add(tableName)) {
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				requested.remove(tableName);
+				flushTable(tableName);
+			}
+		});
+	}
+
+	/**
+	 * Asks the background thread to flush the given table once the linger
+	 * time has passed.
+	 *
+	 * @param tableName
+	 *            the table name.
+	 * @param lingerMillis
+	 *            the linger time in milliseconds.
+	 */
+	void scheduleFlush(final byte[] tableName, long lingerMillis) {
+		if (closed || !lingering.add(tableName)) {
+			return;
+		}
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				lingering.remove(tableName);
+				flushTable(tableName);
+			}
+		}, lingerMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void flushTable(byte[] tableName) {
+		try {
+			hBase.flushClosed(tableName);
+		} catch (RuntimeException e) {
+			LOG.error("Write behind flush of table [" + Bytes.toString(tableName) + "] failed.", e);
+			failure = e;
+		}
+	}
+
+	/**
+	 * Rejects the caller if the pending mutation limit has been reached and
+	 * this flusher does not block.
+	 */
+	void checkCapacity() {
+		if (!blockWhenFull && !closed && budget.availablePermits() <= 0) {
+			throw new IllegalStateException("Write behind buffer is full, [" + maxPendingMutations
+					+ "] mutations are pending.");
+		}
+	}
+
+	/**
+	 * Accounts for a newly queued mutation, blocking until there is room for
+	 * it.
+	 */
+	void acquire() {
+		try {
+			while (!budget.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+				if (closed) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	long getFlushIntervalMillis() {
+		return flushIntervalMillis;
+	}
+
+	void release(int mutations) {
+		if (mutations > 0) {
+			budget.release(mutations);
+		}
+	}
+
+	/**
+	 * Throws the last background flush failure, if there was one.
+	 */
+	void checkFailure() {
+		RuntimeException e = failure;
+		if (e != null) {
+			failure = null;
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops the background thread, waiting for a running flush to finish.
+	 */
+	void shutdown() {
+		closed = true;
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+				LOG.warn("Write behind flusher did not stop in time.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Notified once the flush that sends a mutation has finished. Callbacks are
+ * tracked per flushed batch, so a callback hears about the whole batch that
+ * held its mutation: it is told the batch was written only if every mutation
+ * of the batch was written, otherwise it gets the first error of the batch.
+ * Callbacks run on the flushing thread and should return quickly.
+ * 
+ * @author Aaron McCurry
+ */
+public interface WriteCallback {
+
+	/**
+	 * Called once the batch holding the mutation has been written.
+	 */
+	void written();
+
+	/**
+	 * Called when the batch holding the mutation could not be written, this
+	 * includes mutations that were handed to a {@link DeadLetterHandler}.
+	 * 
+	 * @param cause
+	 *            the error.
+	 */
+	void failed(Exception cause);
+
+}
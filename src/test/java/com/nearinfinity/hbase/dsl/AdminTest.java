@@ -17,13 +17,19 @@ package com.nearinfinity.hbase.dsl;
  * limitations under the License.
  */
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.HashSet;
+import java.util.Set;
+
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HServerAddress;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Test;
 
@@ -71,4 +77,19 @@ public class AdminTest extends BaseTest {
 		assertTrue(family.isInMemory());
 		assertFalse(family.isBlockCacheEnabled());
 	}
+
+	@Test
+	public void warmUp() throws Exception {
+		assertTrue(hBase.warmUp(TABLE) >= 0);
+		assertTrue(hBase.fetch(TABLE).row("1234") == null);
+
+		Set<HServerAddress> servers = new HashSet<HServerAddress>();
+		HTable table = new HTable(TABLE);
+		byte[][] startKeys = table.getStartKeys();
+		assertEquals(startKeys.length, hBase.warmUpTable(Bytes.toBytes(TABLE), servers));
+		for (byte[] startKey : startKeys) {
+			assertTrue(servers.contains(table.getRegionLocation(startKey).getServerAddress()));
+		}
+	}
+
 }
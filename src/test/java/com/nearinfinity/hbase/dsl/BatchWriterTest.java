@@ -0,0 +1,157 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * Writes through a table that fails a given number of times, to check the
+ * retries and the dead letter handling of the {@link BatchWriter}.
+ * 
+ * @author Aaron McCurry
+ */
+public class BatchWriterTest extends BaseTest {
+
+	private static final byte[] TABLE_NAME = Bytes.toBytes(TABLE);
+
+	@Test
+	public void retryFailedPuts() throws IOException {
+		FailingTable table = new FailingTable(2);
+		BatchWriter writer = newWriter(table, 3);
+
+		assertNull(writer.writePuts(TABLE_NAME, puts("1234", "1235")));
+		assertEquals(3, table.attempts);
+		assertFalse(hTable.get(new Get(Bytes.toBytes("1234"))).isEmpty());
+		assertFalse(hTable.get(new Get(Bytes.toBytes("1235"))).isEmpty());
+	}
+
+	@Test
+	public void deadLetterPutsAfterRetries() throws IOException {
+		FailingTable table = new FailingTable(Integer.MAX_VALUE);
+		BatchWriter writer = newWriter(table, 2);
+		final List<Put> deadPuts = new ArrayList<Put>();
+		final List<Delete> deadDeletes = new ArrayList<Delete>();
+		writer.setDeadLetterHandler(new DeadLetterHandler() {
+			@Override
+			public void failedPuts(byte[] tableName, List<Put> puts, Exception cause) {
+				deadPuts.addAll(puts);
+			}
+
+			@Override
+			public void failedDeletes(byte[] tableName, List<Delete> deletes, Exception cause) {
+				deadDeletes.addAll(deletes);
+			}
+		});
+
+		assertNotNull(writer.writePuts(TABLE_NAME, puts("1234", "1235")));
+		assertEquals(3, table.attempts);
+		assertEquals(2, deadPuts.size());
+
+		List<Delete> deletes = new ArrayList<Delete>();
+		deletes.add(new Delete(Bytes.toBytes("1234")));
+		assertNotNull(writer.writeDeletes(TABLE_NAME, deletes));
+		assertEquals(1, deadDeletes.size());
+	}
+
+	@Test
+	public void failWithoutDeadLetterHandler() throws IOException {
+		BatchWriter writer = newWriter(new FailingTable(Integer.MAX_VALUE), 1);
+		try {
+			writer.writePuts(TABLE_NAME, puts("1234"));
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("injected failure", e.getCause().getMessage());
+		}
+	}
+
+	private BatchWriter newWriter(final HTable table, int maxRetries) {
+		BatchWriter writer = new BatchWriter(new HTablePool() {
+			@Override
+			public HTable getTable(byte[] tableName) {
+				return table;
+			}
+
+			@Override
+			public void putTable(HTable table) {
+			}
+		}, 1);
+		writer.setRetryPolicy(new RetryPolicy().maxRetries(maxRetries).backoff(1, TimeUnit.MILLISECONDS));
+		return writer;
+	}
+
+	private List<Put> puts(String... ids) {
+		List<Put> puts = new ArrayList<Put>();
+		for (String id : Arrays.asList(ids)) {
+			Put put = new Put(Bytes.toBytes(id));
+			put.add(Bytes.toBytes(FAM_A), Bytes.toBytes("col1"), Bytes.toBytes("val1"));
+			puts.add(put);
+		}
+		return puts;
+	}
+
+	/**
+	 * Fails the first writes the way a region server error does, leaving the
+	 * failed mutations in the write buffer or the list of deletes.
+	 */
+	private static class FailingTable extends HTable {
+
+		private int failures;
+		private int attempts;
+
+		FailingTable(int failures) throws IOException {
+			super(TABLE);
+			this.failures = failures;
+		}
+
+		@Override
+		public synchronized void put(List<Put> puts) throws IOException {
+			if (attempts++ < failures) {
+				getWriteBuffer().addAll(puts);
+				throw new IOException("injected failure");
+			}
+			super.put(puts);
+		}
+
+		@Override
+		public synchronized void delete(ArrayList<Delete> deletes) throws IOException {
+			if (attempts++ < failures) {
+				throw new IOException("injected failure");
+			}
+			super.delete(deletes);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * Writes HFiles to the local file system, this does not need a cluster.
+ * 
+ * @author Aaron McCurry
+ */
+public class BulkLoadTest {
+
+	@Test
+	public void bulkLoad() throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "bulkload-test-" + System.currentTimeMillis());
+		try {
+			bulkLoad(dir);
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private void bulkLoad(File dir) throws IOException {
+		HBase<QueryOps<String>, String> hBase = new HBase<QueryOps<String>, String>(String.class);
+		BulkLoad<QueryOps<String>, String> bulkLoad = hBase.bulkLoad(Bytes.toBytes("test"), dir.getAbsolutePath(),
+				new byte[][] { new byte[0], Bytes.toBytes("5000") }).maxMemory(64 * 1024);
+
+		SaveRow<QueryOps<String>, String> saveRow = bulkLoad.save();
+		for (int i = 9999; i >= 0; i--) {
+			saveRow.row(String.format("%04d", i)).family("famA").col("value", i).family("famB").col("value", "v" + i);
+		}
+		saveRow.row("0001").family("famA").col("value", -1);
+		List<Path> paths = bulkLoad.close();
+		assertEquals(4, paths.size());
+
+		FileSystem fs = FileSystem.getLocal(new Configuration());
+		int entries = 0;
+		for (Path path : paths) {
+			HFile.Reader reader = new HFile.Reader(fs, path, null, false);
+			try {
+				reader.loadFileInfo();
+				entries += reader.getEntries();
+			} finally {
+				reader.close();
+			}
+		}
+		assertEquals(20000, entries);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
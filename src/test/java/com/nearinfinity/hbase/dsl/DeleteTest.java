@@ -19,6 +19,12 @@ package com.nearinfinity.hbase.dsl;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Test;
 
 /**
@@ -38,4 +44,57 @@ public class DeleteTest extends BaseTest {
 		assertNull(rowAfter.value(FAM_A, "base", String.class));
 	}
 
+	@Test public void deleteColumnWithWriteBehind() throws InterruptedException {
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1").family(FAM_B).col("base", "value2");
+		hBase.flush();
+		hBase.enableWriteBehind(500, TimeUnit.MILLISECONDS, 1000);
+		try {
+			DeletedRow.DeletedRowFamily<QueryOps<String>, String> delete = hBase.delete(TABLE).row("1234");
+			// background flushes within an interval must not send the row delete before it is narrowed
+			Thread.sleep(100);
+			delete.family(FAM_A).col("base");
+			Row<String> row = hBase.fetch(TABLE).row("1234");
+			assertNull(row.value(FAM_A, "base", String.class));
+			assertEquals("value2", row.value(FAM_B, "base", String.class));
+
+			hBase.delete(TABLE).row("1234");
+			assertNull(hBase.fetch(TABLE).row("1234"));
+		} finally {
+			hBase.disableWriteBehind();
+		}
+	}
+
+	@Test public void deleteSentWhileOwnerIdle() throws IOException, InterruptedException {
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1");
+		hBase.flush();
+		hBase.enableWriteBehind(20, TimeUnit.MILLISECONDS, 1000);
+		final CountDownLatch deleted = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread deleter = new Thread() {
+			@Override
+			public void run() {
+				hBase.delete(TABLE).row("1234");
+				deleted.countDown();
+				// parked like an idle pool thread, the delete stays open
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		deleter.start();
+		try {
+			deleted.await();
+			long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+			while (!hTable.get(new Get(Bytes.toBytes("1234"))).isEmpty() && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(hTable.get(new Get(Bytes.toBytes("1234"))).isEmpty());
+		} finally {
+			done.countDown();
+			deleter.join();
+			hBase.disableWriteBehind();
+		}
+	}
 }
@@ -0,0 +1,93 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.nearinfinity.hbase.dsl.annotation.Column;
+import com.nearinfinity.hbase.dsl.annotation.Family;
+import com.nearinfinity.hbase.dsl.annotation.RowId;
+import com.nearinfinity.hbase.dsl.annotation.Table;
+
+/**
+ * @author Aaron McCurry
+ */
+public class EntityTest extends BaseTest {
+
+	@Table(TABLE)
+	@Family(FAM_A)
+	public static class Person {
+		@RowId
+		private String id;
+		@Column
+		private String name;
+		@Column("years")
+		private int age;
+		@Column(family = FAM_B)
+		private Date created;
+	}
+
+	@Test
+	public void saveAndFetchEntity() throws IOException {
+		Person person = new Person();
+		person.id = "1234";
+		person.name = "aaron";
+		person.age = 30;
+		person.created = new Date(1000);
+		hBase.saveEntity(person);
+		hBase.flush();
+
+		Result result = hTable.get(new Get(Bytes.toBytes("1234")));
+		assertEquals("aaron", Bytes.toString(result.getValue(Bytes.toBytes(FAM_A), Bytes.toBytes("name"))));
+		assertEquals(30, Bytes.toInt(result.getValue(Bytes.toBytes(FAM_A), Bytes.toBytes("years"))));
+
+		Person fetched = hBase.fetchEntity("1234", Person.class);
+		assertEquals("aaron", fetched.name);
+		assertEquals(30, fetched.age);
+		assertEquals(new Date(1000), fetched.created);
+		assertNull(hBase.fetchEntity("4321", Person.class));
+	}
+
+	@Test
+	public void scanEntities() {
+		for (int i = 0; i < 100; i++) {
+			Person person = new Person();
+			person.id = Integer.toString(i);
+			person.age = i;
+			hBase.saveEntity(person);
+		}
+		final AtomicInteger total = new AtomicInteger();
+		hBase.scanEntities(Person.class, new ForEach<Person>() {
+			@Override
+			public void process(Person person) {
+				assertEquals(person.id, Integer.toString(person.age));
+				total.addAndGet(person.age);
+			}
+		});
+		assertEquals(4950, total.get());
+	}
+}
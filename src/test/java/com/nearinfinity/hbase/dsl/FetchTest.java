@@ -18,14 +18,25 @@ package com.nearinfinity.hbase.dsl;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Test;
@@ -67,4 +78,195 @@ public class FetchTest extends BaseTest {
 		assertEquals(new BigDecimal("1234.1234"), row.value(FAM_A, "bigdec", BigDecimal.class));
 	}
 
+	@Test
+	public void fetchFlushesOnlyItsTable() throws IOException {
+		String other = "test-other";
+		hBase.defineTable(other).family(FAM_A);
+		hBase.truncateTable(other);
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1");
+		hBase.save(other).row("1234").family(FAM_A).col("base", "value2");
+
+		assertEquals("value1", hBase.fetch(TABLE).row("1234").value(FAM_A, "base", String.class));
+		HTable otherTable = new HTable(other);
+		assertTrue(otherTable.get(new Get(Bytes.toBytes("1234"))).isEmpty());
+
+		hBase.flush();
+		assertFalse(otherTable.get(new Get(Bytes.toBytes("1234"))).isEmpty());
+	}
+
+	@Test
+	public void fetchSeesDeleteOfOtherThread() throws InterruptedException {
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1");
+		hBase.save(TABLE).row("1235").family(FAM_A).col("base", "value2");
+		hBase.flush();
+		final CountDownLatch deleted = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread deleter = new Thread() {
+			@Override
+			public void run() {
+				hBase.delete(TABLE).row("1234");
+				// the next call closes the first delete
+				hBase.delete(TABLE).row("1235");
+				deleted.countDown();
+				// parked like an idle pool thread, the second delete stays open
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		deleter.start();
+		try {
+			deleted.await();
+			assertNull(hBase.fetch(TABLE).row("1234"));
+			long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+			while (hBase.fetch(TABLE).row("1235") != null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertNull(hBase.fetch(TABLE).row("1235"));
+		} finally {
+			done.countDown();
+			deleter.join();
+		}
+	}
+
+	@Test
+	public void fetchRowAfterSave() throws IOException {
+		FetchRow<String> fetch = hBase.fetch(TABLE).family(FAM_A).col("base");
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1");
+		assertEquals("value1", fetch.row("1234").value(FAM_A, "base", String.class));
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value2");
+		assertEquals("value2", fetch.row("1234").value(FAM_A, "base", String.class));
+	}
+
+	@Test
+	public void fetchRows() throws IOException {
+		for (int i = 0; i < 10; i += 2) {
+			Put put = new Put(Bytes.toBytes(Integer.toString(i)));
+			put.add(Bytes.toBytes(FAM_A), Bytes.toBytes("base"), Bytes.toBytes(i));
+			hTable.put(put);
+		}
+		List<String> ids = new ArrayList<String>();
+		for (int i = 9; i >= 0; i--) {
+			ids.add(Integer.toString(i));
+		}
+		FetchedRows<String> rows = hBase.fetch(TABLE).family(FAM_A).col("base").rows(ids);
+		assertFalse(rows.isComplete());
+		assertEquals(Arrays.asList("9", "7", "5", "3", "1"), rows.getMissingIds());
+		int expected = 8;
+		for (Row<String> row : rows) {
+			assertEquals(new Integer(expected), row.value(FAM_A, "base", Integer.class));
+			expected -= 2;
+		}
+		assertEquals(-2, expected);
+	}
+
+	@Test
+	public void fetchWithRowCache() throws IOException {
+		hBase.enableRowCache(TABLE, 1024 * 1024, 1, TimeUnit.MINUTES);
+		try {
+			hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1").flush();
+			assertEquals("value1", hBase.fetch(TABLE).row("1234").value(FAM_A, "base", String.class));
+			assertEquals("value1", hBase.fetch(TABLE).row("1234").value(FAM_A, "base", String.class));
+			assertEquals(1, hBase.getRowCacheStats(TABLE).getHits());
+
+			hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value2");
+			assertEquals("value2", hBase.fetch(TABLE).row("1234").value(FAM_A, "base", String.class));
+			assertEquals(1, hBase.getRowCacheStats(TABLE).getInvalidations());
+		} finally {
+			hBase.disableRowCache(TABLE);
+		}
+	}
+
+	@Test
+	public void fetchWithNegativeCache() throws IOException {
+		hBase.enableNegativeCache(TABLE, 1, TimeUnit.MINUTES, 1000);
+		try {
+			assertNull(hBase.fetch(TABLE).row("1234"));
+			assertNull(hBase.fetch(TABLE).row("1234"));
+			assertEquals(1, hBase.getNegativeCacheStats(TABLE).getHits());
+
+			hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1");
+			assertNotNull(hBase.fetch(TABLE).row("1234"));
+		} finally {
+			hBase.disableNegativeCache(TABLE);
+		}
+	}
+
+	@Test
+	public void fetchFromManyThreads() throws Exception {
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1").flush();
+		final AtomicInteger found = new AtomicInteger();
+		Thread[] threads = new Thread[16];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100; i++) {
+						Row<String> row = hBase.fetch(TABLE).family(FAM_A).col("base").row("1234");
+						if ("value1".equals(row.value(FAM_A, "base", String.class))) {
+							found.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(16 * 100, found.get());
+
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value2");
+		assertEquals("value2", hBase.fetch(TABLE).family(FAM_A).col("base").row("1234").value(FAM_A, "base",
+				String.class));
+	}
+
+	@Test
+	public void fetchAsync() throws Exception {
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1").flush();
+		Future<Row<String>> row = hBase.fetch(TABLE).rowAsync("1234");
+		Future<Row<String>> missing = hBase.fetch(TABLE).rowAsync("4321");
+		assertEquals("value1", row.get().value(FAM_A, "base", String.class));
+		assertNull(missing.get());
+	}
+
+	@Test
+	public void fetchPrepared() throws Exception {
+		hBase.save(TABLE).row("1").family(FAM_A).col("base", 1).col("other", 1);
+		hBase.save(TABLE).row("2").family(FAM_A).col("base", 2).col("other", 2);
+
+		FetchRow<String> fetch = hBase.fetch(TABLE).family(FAM_A).col("base");
+		assertEquals(new Integer(1), fetch.row("1").value(FAM_A, "base", Integer.class));
+		assertEquals(new Integer(2), fetch.row("2").value(FAM_A, "base", Integer.class));
+
+		final PreparedFetch<String> prepared = fetch.prepare();
+		final AtomicInteger found = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100; i++) {
+						String id = Integer.toString(i % 2 + 1);
+						Row<String> row = prepared.row(id);
+						if (Integer.valueOf(id).equals(row.value(FAM_A, "base", Integer.class))
+								&& row.value(FAM_A, "other", Integer.class) == null) {
+							found.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(8 * 100, found.get());
+
+		hBase.save(TABLE).row("1").family(FAM_A).col("base", 3);
+		assertEquals(new Integer(3), prepared.row("1").value(FAM_A, "base", Integer.class));
+	}
+
 }
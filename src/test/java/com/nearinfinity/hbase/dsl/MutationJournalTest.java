@@ -0,0 +1,177 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the segment handling of the {@link MutationJournal}, this needs no
+ * cluster.
+ * 
+ * @author Aaron McCurry
+ */
+public class MutationJournalTest {
+
+	private static final byte[] TABLE_NAME = Bytes.toBytes("t");
+	private static final byte[] FAMILY = Bytes.toBytes("f");
+	private static final byte[] QUALIFIER = Bytes.toBytes("q");
+	private static final int SEGMENT_SIZE = 256;
+	private File dir;
+	private MutationJournal journal;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = new File(System.getProperty("java.io.tmpdir"), "journal-test-" + System.nanoTime());
+		journal = new MutationJournal(dir, SEGMENT_SIZE);
+	}
+
+	@After
+	public void tearDown() {
+		journal.close();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void replayAfterReopen() throws IOException {
+		for (int i = 0; i < 10; i++) {
+			append(i);
+		}
+		assertEquals(range(0, 10), reopen());
+	}
+
+	@Test
+	public void releaseFlushedSegments() throws IOException {
+		for (int i = 0; i < 20; i++) {
+			append(i);
+		}
+		assertTrue(segments() > 1);
+		journal.release(journal.currentSegment());
+		assertEquals(1, segments());
+	}
+
+	@Test
+	public void onlyRollFullSegments() {
+		append(0);
+		journal.release(journal.currentSegment());
+		journal.release(journal.currentSegment());
+		append(1);
+		assertEquals(1, segments());
+	}
+
+	@Test
+	public void keepSegmentsOfFailedFlush() throws IOException {
+		long id = append(0);
+		MutationJournal.Flush flush = journal.startFlush(id >>> 32);
+		journal.endFlush(flush, true);
+		for (int i = 1; i < 20; i++) {
+			append(i);
+		}
+		// the later puts count as flushed, only the failed one must survive
+		journal.release(journal.currentSegment());
+		assertEquals(Long.valueOf(0), reopen().get(0));
+	}
+
+	@Test
+	public void keepSegmentsOfFlushInProgress() {
+		long id = append(0);
+		MutationJournal.Flush flush = journal.startFlush(id >>> 32);
+		for (int i = 1; i < 20; i++) {
+			append(i);
+		}
+		int segments = segments();
+		journal.release(journal.currentSegment());
+		assertEquals(segments, segments());
+		journal.endFlush(flush, false);
+		journal.release(journal.currentSegment());
+		assertEquals(1, segments());
+	}
+
+	@Test
+	public void rejectSecondJournalInSameProcess() {
+		try {
+			new MutationJournal(dir, SEGMENT_SIZE);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private long append(int i) {
+		return journal.appendPut(TABLE_NAME, Bytes.toBytes("row-" + i), FAMILY, QUALIFIER, i, Bytes.toBytes(i));
+	}
+
+	/**
+	 * @return the timestamps of the puts replayed after reopening the journal.
+	 */
+	private List<Long> reopen() throws IOException {
+		journal.close();
+		journal = new MutationJournal(dir, SEGMENT_SIZE);
+		final List<Long> timestamps = new ArrayList<Long>();
+		journal.replay(new MutationJournal.Replay() {
+			@Override
+			public void put(byte[] tableName, byte[] row, byte[] family, byte[] qualifier, long timestamp,
+					byte[] value) {
+				timestamps.add(timestamp);
+			}
+
+			@Override
+			public void delete(byte[] tableName, long id, Delete delete) {
+			}
+
+			@Override
+			public void deleteColumn(byte[] tableName, long id, byte[] family, byte[] qualifier) {
+			}
+		});
+		return timestamps;
+	}
+
+	private int segments() {
+		return dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".seg");
+			}
+		}).length;
+	}
+
+	private static List<Long> range(int start, int end) {
+		List<Long> values = new ArrayList<Long>();
+		for (int i = start; i < end; i++) {
+			values.add((long) i);
+		}
+		return values;
+	}
+}
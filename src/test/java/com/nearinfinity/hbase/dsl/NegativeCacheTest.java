@@ -0,0 +1,96 @@
+package com.nearinfinity.hbase.dsl;
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the time to live of the {@link NegativeCache} against a clock of its
+ * own, this needs no cluster.
+ * 
+ * @author Aaron McCurry
+ */
+public class NegativeCacheTest {
+
+	private static final long TTL_MILLIS = 100;
+	private static final ByteBuffer PROJECTION = ByteBuffer.wrap(Bytes.toBytes("f"));
+	private long clock;
+	private NegativeCache cache;
+
+	@Before
+	public void setUp() {
+		clock = 0;
+		cache = new NegativeCache(TTL_MILLIS, 1000) {
+			@Override
+			long now() {
+				return clock;
+			}
+		};
+	}
+
+	@Test
+	public void missLivesAtMostTheTimeToLive() {
+		put("1234");
+		clock = 99;
+		assertNotNull(get("1234"));
+		clock = 148;
+		assertNull(get("1234"));
+	}
+
+	@Test
+	public void missOutlivesRotation() {
+		clock = 10;
+		put("1234");
+		clock = 60;
+		put("1235");
+		clock = 99;
+		assertNotNull(get("1234"));
+		assertNotNull(get("1235"));
+		clock = 100;
+		assertNull(get("1234"));
+		assertNotNull(get("1235"));
+		clock = 160;
+		assertNull(get("1235"));
+		assertEquals(2, cache.getStats().getExpirations());
+	}
+
+	@Test
+	public void idleCacheForgetsEverything() {
+		put("1234");
+		clock = 1000;
+		assertNull(get("1234"));
+		assertEquals(1, cache.getStats().getExpirations());
+	}
+
+	private void put(String id) {
+		cache.put(Bytes.toBytes(id), PROJECTION, null, cache.generation());
+	}
+
+	private Object get(String id) {
+		return cache.get(Bytes.toBytes(id), PROJECTION);
+	}
+}
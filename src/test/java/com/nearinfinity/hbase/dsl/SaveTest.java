@@ -18,14 +18,27 @@ package com.nearinfinity.hbase.dsl;
  */
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.NavigableMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -94,4 +107,302 @@ public class SaveTest extends BaseTest {
 		assertArrayEquals(Bytes.toBytes(1234l), familyMapA.get(Bytes.toBytes("long")));
 		assertArrayEquals(new byte[]{1,2,3,4}, familyMapA.get(Bytes.toBytes("bytearray")));
 	}
+
+	@Test
+	public void saveWriteBehind() throws IOException {
+		hBase.enableWriteBehind(10, TimeUnit.MILLISECONDS, 16);
+		for (int i = 0; i < 100; i++) {
+			hBase.save(TABLE).row("row" + i).family(FAM_A).col("base", i).family(FAM_B).col("base", "value" + i);
+		}
+		hBase.disableWriteBehind();
+
+		for (int i = 0; i < 100; i++) {
+			Result result = hTable.get(new Get(Bytes.toBytes("row" + i)));
+			assertArrayEquals(Bytes.toBytes(i), result.getValue(Bytes.toBytes(FAM_A), Bytes.toBytes("base")));
+			assertArrayEquals(Bytes.toBytes("value" + i), result.getValue(Bytes.toBytes(FAM_B), Bytes.toBytes("base")));
+		}
+	}
+
+	@Test
+	public void saveWithBatchPolicy() throws IOException {
+		Table<QueryOps<String>, String> table = hBase.table(TABLE).batchPolicy(new BatchPolicy().maxMutations(2));
+		table.save().row("1").family(FAM_A).col("base", "value1");
+		table.save().row("2").family(FAM_A).col("base", "value2");
+		table.save().row("3").family(FAM_A).col("base", "value3");
+
+		assertFalse(hTable.get(new Get(Bytes.toBytes("1"))).isEmpty());
+		assertFalse(hTable.get(new Get(Bytes.toBytes("2"))).isEmpty());
+		assertTrue(hTable.get(new Get(Bytes.toBytes("3"))).isEmpty());
+
+		hBase.flush();
+		assertFalse(hTable.get(new Get(Bytes.toBytes("3"))).isEmpty());
+	}
+
+	@Test
+	public void saveFromManyThreads() throws Exception {
+		Thread[] threads = new Thread[16];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 500; i++) {
+						hBase.save(TABLE).row(thread + "-" + i).family(FAM_A).col("col1", i).col("col2", thread);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		hBase.flush();
+
+		final AtomicInteger count = new AtomicInteger();
+		hBase.scan(TABLE).foreach(new ForEach<Row<String>>() {
+			@Override
+			public void process(Row<String> row) {
+				assertNotNull(row.value(FAM_A, "col1", Integer.class));
+				assertNotNull(row.value(FAM_A, "col2", Integer.class));
+				count.incrementAndGet();
+			}
+		});
+		assertEquals(16 * 500, count.get());
+	}
+
+	@Test
+	public void saveWithCoalescing() throws IOException {
+		hBase.setBatchPolicy(TABLE, new BatchPolicy().coalesce(true));
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1").col("other", "other1");
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value2");
+		hBase.save(TABLE).row("4321").family(FAM_A).col("base", "value1");
+		hBase.delete(TABLE).row("4321");
+		hBase.flush();
+
+		Result result = hTable.get(new Get(Bytes.toBytes("1234")));
+		assertArrayEquals(Bytes.toBytes("value2"), result.getValue(Bytes.toBytes(FAM_A), Bytes.toBytes("base")));
+		assertArrayEquals(Bytes.toBytes("other1"), result.getValue(Bytes.toBytes(FAM_A), Bytes.toBytes("other")));
+		assertTrue(hTable.get(new Get(Bytes.toBytes("4321"))).isEmpty());
+	}
+
+	@Test
+	public void saveIncrements() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			hBase.save(TABLE).row("1234").family(FAM_A).increment("count", 2);
+		}
+		assertEquals(200, hBase.counter(TABLE, "1234", FAM_A, "count"));
+
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						hBase.save(TABLE).row("hot").family(FAM_A).increment("count", 1, 4);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(8000, hBase.counter(TABLE, "hot", FAM_A, "count", 4));
+	}
+
+	@Test
+	public void saveIncrementsWriteBehind() throws Exception {
+		// a full buffer throws instead of blocking, so a leaked budget fails the test
+		hBase.enableWriteBehind(1, TimeUnit.MINUTES, 8, false);
+		try {
+			for (int round = 0; round < 10; round++) {
+				Thread[] threads = new Thread[8];
+				for (int i = 0; i < threads.length; i++) {
+					threads[i] = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							hBase.save(TABLE).row("1234").family(FAM_A).increment("count", 1);
+						}
+					});
+					threads[i].start();
+				}
+				for (Thread thread : threads) {
+					thread.join();
+				}
+				hBase.flush();
+			}
+			for (int i = 0; i < 8; i++) {
+				hBase.save(TABLE).row("row" + i).family(FAM_A).col("base", i);
+			}
+		} finally {
+			hBase.disableWriteBehind();
+		}
+		assertEquals(80, hBase.counter(TABLE, "1234", FAM_A, "count"));
+	}
+
+	@Test
+	public void saveConditionally() throws IOException {
+		assertTrue(hBase.save(TABLE).row("1234").ifMissing(FAM_A, "version").family(FAM_A).col("version", 1)
+				.col("base", "value1").apply());
+		assertFalse(hBase.save(TABLE).row("1234").ifMissing(FAM_A, "version").family(FAM_A).col("base", "value2")
+				.apply());
+		assertTrue(hBase.save(TABLE).row("1234").ifEquals(FAM_A, "version", 1).family(FAM_A).col("version", 2)
+				.col("base", "value3").apply());
+
+		Result result = hTable.get(new Get(Bytes.toBytes("1234")));
+		assertArrayEquals(Bytes.toBytes("value3"), result.getValue(Bytes.toBytes(FAM_A), Bytes.toBytes("base")));
+
+		List<SaveRow.ConditionalSave<QueryOps<String>, String>> saves = new ArrayList<SaveRow.ConditionalSave<QueryOps<String>, String>>();
+		for (int i = 0; i < 10; i++) {
+			saves.add(hBase.save(TABLE).row(Integer.toString(i % 5)).ifMissing(FAM_A, "base").family(FAM_A)
+					.col("base", i));
+		}
+		List<Boolean> applied = hBase.apply(saves);
+		int count = 0;
+		for (boolean b : applied) {
+			if (b) {
+				count++;
+			}
+		}
+		assertEquals(5, count);
+	}
+
+	@Test
+	public void saveWithCallback() throws Exception {
+		final AtomicInteger written = new AtomicInteger();
+		WriteCallback callback = new WriteCallback() {
+			@Override
+			public void written() {
+				written.incrementAndGet();
+			}
+
+			@Override
+			public void failed(Exception cause) {
+				throw new RuntimeException(cause);
+			}
+		};
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1").whenWritten(callback);
+		assertEquals(0, written.get());
+
+		hBase.flushAsync().get();
+		assertEquals(1, written.get());
+		assertFalse(hTable.get(new Get(Bytes.toBytes("1234"))).isEmpty());
+	}
+
+	@Test
+	public void callbackNotHeldBackByOpenDeletes() throws InterruptedException {
+		// enough threads to leave an open delete in every stripe
+		final CountDownLatch opened = new CountDownLatch(64);
+		final CountDownLatch done = new CountDownLatch(1);
+		List<Thread> deleters = new ArrayList<Thread>();
+		for (int i = 0; i < 64; i++) {
+			final String row = "open-" + i;
+			Thread deleter = new Thread() {
+				@Override
+				public void run() {
+					hBase.delete(TABLE).row(row);
+					opened.countDown();
+					try {
+						done.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			deleter.start();
+			deleters.add(deleter);
+		}
+		opened.await();
+		final AtomicInteger written = new AtomicInteger();
+		hBase.save(TABLE).row("1234").family(FAM_A).col("base", "value1").whenWritten(new WriteCallback() {
+			@Override
+			public void written() {
+				written.incrementAndGet();
+			}
+
+			@Override
+			public void failed(Exception cause) {
+				throw new RuntimeException(cause);
+			}
+		});
+		try {
+			hBase.flushClosed();
+			assertEquals(1, written.get());
+		} finally {
+			done.countDown();
+			for (Thread deleter : deleters) {
+				deleter.join();
+			}
+		}
+	}
+
+	@Test
+	public void ifMissingOnMissingRow() throws IOException {
+		assertTrue(hBase.save(TABLE).row("missing").ifMissing(FAM_A, "version").family(FAM_A).col("version", 1)
+				.apply());
+		assertFalse(hTable.get(new Get(Bytes.toBytes("missing"))).isEmpty());
+		assertFalse(hBase.save(TABLE).row("missing").ifMissing(FAM_A, "version").family(FAM_A).col("version", 2)
+				.apply());
+	}
+
+	@Test
+	public void flushWritesDeletesWhenPutsFail() {
+		hBase.save(TABLE).row("1234").family(FAM_A).col("col1", "val1");
+		hBase.flush();
+
+		HBaseConfiguration conf = new HBaseConfiguration();
+		conf.setInt("hbase.client.retries.number", 1);
+		HBase<QueryOps<String>, String> failing = new HBase<QueryOps<String>, String>(String.class, conf);
+		failing.setRetryPolicy(new RetryPolicy().maxRetries(0));
+		failing.delete(TABLE).row("1234");
+		failing.save(TABLE).row("1235").family("missing").col("col1", "val1");
+		try {
+			failing.flush(TABLE);
+			fail();
+		} catch (RuntimeException e) {
+			// the put to the missing family fails
+		}
+		assertNull(hBase.fetch(TABLE).row("1234"));
+	}
+
+	@Test
+	public void closeFlushesAndStopsThreads() throws IOException, InterruptedException {
+		String other = "test-other";
+		hBase.defineTable(other).family(FAM_A);
+		int threads = threads("hbase-dsl-flush");
+		HBase<QueryOps<String>, String> closing = new HBase<QueryOps<String>, String>(String.class);
+		closing.save(TABLE).row("1234").family(FAM_A).col("col1", "val1");
+		closing.save(other).row("1234").family(FAM_A).col("col1", "val1");
+		closing.close();
+		assertFalse(hTable.get(new Get(Bytes.toBytes("1234"))).isEmpty());
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (threads("hbase-dsl-flush") > threads && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(threads, threads("hbase-dsl-flush"));
+	}
+
+	@Test
+	public void closeLeavesCallerExecutorRunning() {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			HBase<QueryOps<String>, String> closing = new HBase<QueryOps<String>, String>(String.class);
+			closing.setFlushExecutor(executor);
+			closing.save(TABLE).row("1234").family(FAM_A).col("col1", "val1");
+			closing.close();
+			assertFalse(executor.isShutdown());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static int threads(String prefix) {
+		int threads = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && thread.getName().startsWith(prefix)) {
+				threads++;
+			}
+		}
+		return threads;
+	}
 }
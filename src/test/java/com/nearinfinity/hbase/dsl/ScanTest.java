@@ -23,6 +23,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -30,7 +31,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.junit.Test;
 
 /**
@@ -229,4 +233,114 @@ public class ScanTest extends BaseTest {
 		assertFalse(ids.hasNext());
 	}
 
+	@Test
+	public void scanAsync() throws Exception {
+		hBase.save(TABLE).row("1234").family(FAM_A).col("col1", "val1").col("col2", "val1");
+		hBase.save(TABLE).row("1235").family(FAM_A).col("col1", "val2").col("col2", "val2");
+
+		final Iterator<String> ids = Arrays.asList("1234", "1235").iterator();
+		hBase.scan(TABLE).foreachAsync(new ForEach<Row<String>>() {
+			@Override
+			public void process(Row<String> row) {
+				assertTrue(ids.hasNext());
+				assertEquals(ids.next(), row.getId());
+			}
+		}).get();
+		assertFalse(ids.hasNext());
+	}
+
+	@Test
+	public void scanManyTimes() {
+		hBase.save(TABLE).row("1234").family(FAM_A).col("col1", "val1");
+		hBase.save(TABLE).row("1235").family(FAM_A).col("col1", "val2");
+
+		for (int i = 0; i < 100; i++) {
+			Iterator<Row<String>> rows = hBase.scan(TABLE).iterator();
+			assertTrue(rows.hasNext());
+			assertEquals("1234", rows.next().getId());
+			assertTrue(rows.hasNext());
+			assertEquals("1235", rows.next().getId());
+			assertFalse(rows.hasNext());
+		}
+	}
+
+	@Test
+	public void scanWithCaching() {
+		for (int i = 0; i < 50; i++) {
+			hBase.save(TABLE).row(Integer.toString(1000 + i)).family(FAM_A).col("col1", i);
+		}
+		assertEquals(50, count(hBase.scan(TABLE).caching(7)));
+		assertEquals(50, count(hBase.scan(TABLE).select().family(FAM_A).caching(5).adaptiveCaching(100)));
+	}
+
+	@Test
+	public void scanParallel() throws IOException, InterruptedException {
+		for (int i = 0; i < 50; i++) {
+			hBase.save(TABLE).row(Integer.toString(1000 + i)).family(FAM_A).col("col1", i).family(FAM_B).col("col2", i);
+		}
+		hBase.flush();
+		splitTable();
+		assertEquals(50, count(hBase.scan(TABLE).parallel(4)));
+		assertEquals(25, count(hBase.scan(TABLE, "1010", "1035").select().family(FAM_A).parallel(4)));
+
+		final List<String> ids = new ArrayList<String>();
+		hBase.scan(TABLE).parallel(4, false).select().family(FAM_B).foreach(new ForEach<Row<String>>() {
+			@Override
+			public void process(Row<String> row) {
+				assertNotNull(row.value(FAM_B, "col2", Integer.class));
+				ids.add(row.getId());
+			}
+		});
+		assertEquals(50, ids.size());
+
+		Scanner.RowIterator<String> rows = hBase.scan(TABLE).caching(1).parallel(4).iterator();
+		assertEquals("1000", rows.next().getId());
+		rows.close();
+		assertFalse(rows.hasNext());
+	}
+
+	@Test
+	public void scanWithPrefetch() {
+		for (int i = 0; i < 50; i++) {
+			hBase.save(TABLE).row(Integer.toString(1000 + i)).family(FAM_A).col("col1", i);
+		}
+		assertEquals(50, count(hBase.scan(TABLE).caching(3).prefetch(2)));
+		assertEquals(50, count(hBase.scan(TABLE).select().family(FAM_A).parallel(2).prefetch(4)));
+
+		Scanner.RowIterator<String> rows = hBase.scan(TABLE).caching(1).prefetch(1).iterator();
+		try {
+			assertEquals("1000", rows.next().getId());
+			assertEquals("1001", rows.next().getId());
+		} finally {
+			rows.close();
+		}
+		assertFalse(rows.hasNext());
+	}
+
+	/**
+	 * Splits the single region of the test table, so a parallel scan has more
+	 * than one piece.
+	 */
+	private void splitTable() throws IOException, InterruptedException {
+		HBaseAdmin admin = new HBaseAdmin(new HBaseConfiguration());
+		admin.flush(TABLE);
+		admin.split(TABLE);
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+		while (hTable.getStartKeys().length < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertTrue(hTable.getStartKeys().length > 1);
+	}
+
+	private int count(Iterable<Row<String>> rows) {
+		int count = 0;
+		String last = null;
+		for (Row<String> row : rows) {
+			assertTrue(last == null || last.compareTo(row.getId()) < 0);
+			last = row.getId();
+			count++;
+		}
+		return count;
+	}
+
 }